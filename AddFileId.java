@@ -29,7 +29,10 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 @author: Kai Lin (klin@ucsd.edu)
 @date: July 24th 2017
-@desc: Program adds two new columns “file_id” and “link” to each partition table and populates the columns. (Original NSIDC HDF5 link back)
+@desc: Program adds the new column “file_id” to each partition table and populates the column. (Original NSIDC HDF5 link back)
+ICESATDBPartition now writes “fileid” when it builds a table, a column that a table already has is not updated again.
+The “link” column of older partition tables is dropped, the links are only kept in “hdf5_file” and resolved by LinkDictionary.
+Only the “t_<lat>_<lon>” tables that exist in “icesat_partitions” are visited.
 @project_url: www.openaltimetry.org
 
 */
@@ -40,27 +43,30 @@ package org.openaltimetry.icesat.db.util;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.Statement;
+import java.util.TreeSet;
 
 public class AddFileId {
     
-    private static void doit(Connection connection, int lat, int lng) throws Exception {
+    private static void doit(Connection connection, String table) throws Exception {
 
         Statement stmt = connection.createStatement();
 
         // add the column fileid
-        String sql = "ALTER TABLE icesat_partitions.\"t_" + lat + "_" + lng + "\" ADD COLUMN fileid integer";
+        String sql = "ALTER TABLE icesat_partitions.\"" + table + "\" ADD COLUMN fileid integer";
 	try {
             stmt.execute(sql);
 	} catch (Exception ex) {
+	    // the table already has the column, written when the table was built
 	    System.out.println(sql);
 	    System.out.println(ex.getMessage());
+	    return;
 	}
 
         // insert data into the fileld
-        sql = "UPDATE icesat_partitions.\"t_" + lat + "_" + lng + "\" \n"
+        sql = "UPDATE icesat_partitions.\"" + table + "\" \n"
                 + "SET fileid = data_40hz.fileid \n"
                 + "FROM data_40hz \n"
-                + "WHERE icesat_partitions.\"t_" + lat + "_" + lng + "\".id = data_40hz.id ";
+                + "WHERE icesat_partitions.\"" + table + "\".id = data_40hz.id ";
 
 	try {
 	    stmt.execute(sql);
@@ -72,25 +78,12 @@ public class AddFileId {
     }
 
 
-    private static void doLink(Connection connection, int lat, int lng) throws Exception {
+    private static void dropLink(Connection connection, String table) throws Exception {
 
         Statement stmt = connection.createStatement();
 
-        // add the column fileid
-        String sql = "ALTER TABLE icesat_partitions.\"t_" + lat + "_" + lng + "\" ADD COLUMN link varchar(256)";
-	try {
-            stmt.execute(sql);
-	} catch (Exception ex) {
-	    System.out.println(sql);
-	    System.out.println(ex.getMessage());
-	}
-
-        // insert data into the fileld
-        sql = "UPDATE icesat_partitions.\"t_" + lat + "_" + lng + "\" \n"
-                + "SET link = hdf5_file.link \n"
-                + "FROM hdf5_file \n"
-                + "WHERE icesat_partitions.\"t_" + lat + "_" + lng + "\".fileid = hdf5_file.fileid ";
-
+        // drop the column link, the links are resolved from hdf5_file by LinkDictionary
+        String sql = "ALTER TABLE icesat_partitions.\"" + table + "\" DROP COLUMN IF EXISTS link";
 	try {
 	    stmt.execute(sql);
 	} catch (Exception ex) {
@@ -107,13 +100,15 @@ public class AddFileId {
         Connection connection = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
 
         try {
-            for (int lat = -90; lat < 90; lat = lat + 1) {
-                for (int lon = 0; lon < 360; lon = lon + 1) {
-                    System.out.println("-------------------------");
-                    System.out.println("lat="+lat+", lon="+lon);
-                    doit(connection, lat, lon);
-                    doLink(connection, lat, lon);
+            // only the cells that have a partition table
+            for (String table : new TreeSet<String>(PartitionTrackMap.getTables(connection))) {
+                if (!table.startsWith("t_")) {
+                    continue;
                 }
+                System.out.println("-------------------------");
+                System.out.println(table);
+                doit(connection, table);
+                dropLink(connection, table);
             }
         } finally {
             connection.close();
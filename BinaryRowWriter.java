@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Row writer for the PostgreSQL binary COPY format (COPY ... FROM STDIN WITH (FORMAT binary)) of
+table_40hz and table_1hz. Ints, doubles and timestamps are written as raw network order values, so
+neither the extraction nor the server spends time on text formatting and parsing.
+The column types must match the tables: integer for FILEID, TIME_IDX and TRACK_ID, double precision for
+EPOCH_2000_*, LAT, LON and ELEV, timestamp without time zone for DATETIME_*, bigint for the ID of the
+partition tables.
+A COPY stream starts with HEADER and ends with TRAILER, written once per stream by its owner, since the
+rows of several writers may share one stream. frame() does it for a stream written by a single writer.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+public class BinaryRowWriter extends RowWriter {
+
+    // Signature, flags field and header extension length of the binary COPY format
+    public static final byte[] HEADER = {
+        'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+        0, 0, 0, 0,
+        0, 0, 0, 0
+    };
+
+    // Field count -1 ends the binary COPY data
+    public static final byte[] TRAILER = {(byte) 0xFF, (byte) 0xFF};
+
+    // Number of miliseconds from January 1, 1970 to January 1, 2000, 00:00:00 GMT, the PostgreSQL timestamp epoch
+    private static final long POSTGRES_EPOCH = 946684800000L;
+
+    public BinaryRowWriter(WritableByteChannel channel) {
+        super(channel);
+    }
+
+    /**
+     * Wrap a channel that receives a complete COPY stream from one writer:
+     * HEADER is written now and TRAILER when the channel is closed.
+     */
+    public static WritableByteChannel frame(WritableByteChannel channel) throws IOException {
+        writeFully(channel, HEADER);
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return channel.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    writeFully(channel, TRAILER);
+                } finally {
+                    channel.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Write bytes that are not part of any row, such as HEADER or TRAILER.
+     */
+    public static void writeFully(WritableByteChannel channel, byte[] bytes) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(bytes);
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    @Override
+    public void write40hz(int filedb_Id, double time, double lat, double lon, double elev, int time_idx, int trackId) throws IOException {
+        reserveRow();
+        buffer.putShort((short) 8);
+        putInt(filedb_Id);
+        putDouble(time);
+        putTimestamp(time);
+        putDouble(lat);
+        putDouble(lon);
+        putDouble(elev);
+        putInt(time_idx);
+        if (trackId != NO_TRACK) {
+            putInt(trackId);
+        } else {
+            // Field length -1 is NULL
+            buffer.putInt(-1);
+        }
+    }
+
+    @Override
+    public void writeCell(long id, double time, double lat, double lon, double elev, int trackId, int filedb_Id) throws IOException {
+        reserveRow();
+        buffer.putShort((short) 7);
+        buffer.putInt(8);
+        buffer.putLong(id);
+        putTimestamp(time);
+        putDouble(lat);
+        putDouble(lon);
+        putDouble(elev);
+        if (trackId != NO_TRACK) {
+            putInt(trackId);
+        } else {
+            // Field length -1 is NULL
+            buffer.putInt(-1);
+        }
+        putInt(filedb_Id);
+    }
+
+    @Override
+    public void write1hz(int filedb_Id, double time, int trackId, int time_idx) throws IOException {
+        reserveRow();
+        buffer.putShort((short) 5);
+        putInt(filedb_Id);
+        putDouble(time);
+        putTimestamp(time);
+        putInt(trackId);
+        putInt(time_idx);
+    }
+
+    private void putInt(int value) {
+        buffer.putInt(4);
+        buffer.putInt(value);
+    }
+
+    private void putDouble(double value) {
+        buffer.putInt(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Timestamps are microseconds since the PostgreSQL epoch, computed from the
+     * same miliseconds the CSV text is formatted from.
+     */
+    private void putTimestamp(double time) {
+        buffer.putInt(8);
+        buffer.putLong((TimestampFormatter.toEpochMillis(time) - POSTGRES_EPOCH) * 1000);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Rows of the partition tables icesat_partitions."t_<lat>_<lon>" collected per 1x1 degree cell while the
+granules are extracted, so the partition tables can be loaded by COPY straight from the cell files
+cell_<lat>_<lon>.csv (or .bin) without partitioning data_40hz afterwards. A cell is identified by floor(lat)
+from -90 to 89 and floor(lon) from 0 to 359, it holds the points of lat <= lat < lat + 1 and lon <= lon < lon + 1
+and the last cells also hold the points on lat 90 and lon 360, like the tables built by ICESATDBPartition.
+The rows of a cell are kept in a buffer taken from a bounded pool and appended to the cell file when the buffer
+is full, or when its memory is needed by another cell, so memory use is bounded and a cell file is only open
+while a buffer is being appended to it.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+
+public class CellBuckets implements Closeable {
+
+    // Number of 1x1 degree cells
+    public static final int CELLS = 180 * 360;
+
+    // Size of the buffer of each cell
+    public static final int CELL_BUFFER_SIZE = Integer.getInteger("hdf5.cell_buffer_size", 256 << 10);
+
+    // Number of cell buffers, the memory used is CELL_BUFFERS * CELL_BUFFER_SIZE
+    public static final int CELL_BUFFERS = Integer.getInteger("hdf5.cell_buffers", 512);
+
+    // Directory the cell files are written to
+    private final File cell_dir_obj;
+
+    // Whether the cell files are PostgreSQL binary COPY streams
+    private final boolean binary;
+
+    // Buffer of each cell, null while the cell has no pending rows
+    private final ByteBuffer[] buffers = new ByteBuffer[CELLS];
+
+    // Whether the file of each cell was created by this run
+    private final boolean[] started = new boolean[CELLS];
+
+    // Buffers not given to any cell
+    private final ArrayDeque<ByteBuffer> free_buffers = new ArrayDeque<>();
+
+    // Cells holding a buffer, in the order they took it
+    private final LinkedHashSet<Integer> holding = new LinkedHashSet<>();
+
+    // Number of buffers allocated so far
+    private int allocated = 0;
+
+    /**
+     * Channel of one row writer, appending what is written to its current cell.
+     */
+    public class Channel implements WritableByteChannel {
+
+        // Cell the next rows belong to
+        public int cell = -1;
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int length = src.remaining();
+            append(cell, src);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * @param cell_dir_obj directory of the cell files, the cell files of an earlier run are removed
+     * @param binary write the cell files as PostgreSQL binary COPY streams instead of CSV
+     * @throws IOException
+     */
+    public CellBuckets(File cell_dir_obj, boolean binary) throws IOException {
+        this.cell_dir_obj = cell_dir_obj;
+        this.binary = binary;
+
+        if (!cell_dir_obj.isDirectory() && !cell_dir_obj.mkdirs()) {
+            throw new IOException("Cannot create " + cell_dir_obj.getAbsolutePath());
+        }
+        File[] files = cell_dir_obj.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("cell_")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the cell of a point, points on the north pole and on lon 360 fall in the last cells
+     */
+    public static int cellOf(double lat, double lon) {
+        int lat_cell = (int) Math.floor(lat);
+        lat_cell = Math.max(-90, Math.min(89, lat_cell));
+
+        int lon_cell = (int) Math.floor(lon);
+        if (lon_cell < 0) {
+            lon_cell += 360;
+        }
+        lon_cell = Math.max(0, Math.min(359, lon_cell));
+
+        return (lat_cell + 90) * 360 + lon_cell;
+    }
+
+    public static int latOf(int cell) {
+        return cell / 360 - 90;
+    }
+
+    public static int lonOf(int cell) {
+        return cell % 360;
+    }
+
+    /**
+     * @return file of a cell, ex. cell_32_245.csv
+     */
+    public File fileOf(int cell) {
+        return new File(cell_dir_obj, "cell_" + latOf(cell) + "_" + lonOf(cell) + (binary ? ".bin" : ".csv"));
+    }
+
+    /**
+     * @return a channel for one row writer
+     */
+    public Channel newChannel() {
+        return new Channel();
+    }
+
+    /**
+     * Append whole rows to a cell.
+     *
+     * @throws IOException
+     */
+    public synchronized void append(int cell, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            ByteBuffer buffer = buffers[cell];
+            if (buffer == null) {
+                buffer = takeBuffer();
+                buffers[cell] = buffer;
+                holding.add(cell);
+            }
+
+            if (src.remaining() <= buffer.remaining()) {
+                buffer.put(src);
+            } else {
+                int limit = src.limit();
+                src.limit(src.position() + buffer.remaining());
+                buffer.put(src);
+                src.limit(limit);
+            }
+
+            if (!buffer.hasRemaining()) {
+                spill(cell);
+            }
+        }
+    }
+
+    /**
+     * Take a free buffer, or once all are in use the buffer of the cell that has held
+     * its buffer the longest, without looking at every cell.
+     */
+    private ByteBuffer takeBuffer() throws IOException {
+        ByteBuffer buffer = free_buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (allocated < CELL_BUFFERS) {
+            allocated++;
+            return ByteBuffer.allocate(CELL_BUFFER_SIZE);
+        }
+
+        spill(holding.iterator().next());
+        return free_buffers.poll();
+    }
+
+    /**
+     * Append the pending rows of a cell to its file and free its buffer.
+     */
+    private void spill(int cell) throws IOException {
+        ByteBuffer buffer = buffers[cell];
+        buffers[cell] = null;
+        holding.remove(cell);
+
+        try (FileChannel file = FileChannel.open(fileOf(cell).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (!started[cell]) {
+                started[cell] = true;
+                if (binary) {
+                    BinaryRowWriter.writeFully(file, BinaryRowWriter.HEADER);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                file.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+            free_buffers.add(buffer);
+        }
+    }
+
+    /**
+     * Append the pending rows of every cell to the cell files, and end the binary COPY streams.
+     * Must be called after all row writers are closed.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (int cell = 0; cell < CELLS; cell++) {
+            if (buffers[cell] != null) {
+                spill(cell);
+            }
+        }
+        if (binary) {
+            for (int cell = 0; cell < CELLS; cell++) {
+                if (started[cell]) {
+                    try (FileChannel file = FileChannel.open(fileOf(cell).toPath(),
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        BinaryRowWriter.writeFully(file, BinaryRowWriter.TRAILER);
+                    }
+                }
+            }
+        }
+        free_buffers.clear();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Extraction output writing the 40hz rows into one file per 1x1 degree cell under the cells directory of the
+data directory, in the layout of the partition tables icesat_partitions."t_<lat>_<lon>" (see CellBuckets).
+table_fileId.csv and the table_1hz_<ymd> files are written as by DirectoryOutput.
+Must be closed after the extraction to write out the rows still buffered.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+public class CellOutput extends DirectoryOutput implements Closeable {
+
+    // Cell files of the 40hz rows
+    private final CellBuckets buckets;
+
+    public CellOutput(File data_dir_obj, boolean binary) throws IOException {
+        super(data_dir_obj, binary);
+        this.buckets = new CellBuckets(new File(data_dir_obj, "cells"), binary);
+    }
+
+    @Override
+    public Writer40hz writer40hz(String ymd_dir, boolean binary) {
+        return new CellRowWriter(buckets, binary);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buckets.close();
+    }
+}
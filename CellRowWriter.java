@@ -0,0 +1,88 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Writer of the 40hz rows of one day directory into the cell files of CellBuckets, in the layout of the
+partition tables. The rows of consecutive points of a track mostly fall in the same cell, so they are encoded
+into the buffer of a CSV or binary row writer and handed to the cell when the track leaves it.
+The ID of a row is the file id in the high 32 bits and the position of the point among the good points of its
+granule in the low 32 bits, so it does not depend on the order the granules are extracted in.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.IOException;
+
+public class CellRowWriter implements Writer40hz {
+
+    // Channel appending the rows to the current cell
+    private final CellBuckets.Channel channel;
+
+    // Writer encoding the rows into channel
+    private final RowWriter rows;
+
+    // Position of the next point in its granule
+    private int granule_Id = -1;
+    private long point = 0;
+
+    public CellRowWriter(CellBuckets buckets, boolean binary) {
+        this.channel = buckets.newChannel();
+        this.rows = RowWriter.create(channel, binary);
+    }
+
+    @Override
+    public void write40hz(int filedb_Id, double time, double lat, double lon, double elev, int time_idx, int trackId) throws IOException {
+        if (filedb_Id != granule_Id) {
+            granule_Id = filedb_Id;
+            point = 0;
+        }
+        writeCell(((long) filedb_Id << 32) | point++, time, lat, lon, elev, trackId, filedb_Id);
+    }
+
+    private void writeCell(long id, double time, double lat, double lon, double elev, int trackId, int filedb_Id) throws IOException {
+        int cell = CellBuckets.cellOf(lat, lon);
+        if (cell != channel.cell) {
+            // Hand the rows of the previous cell over before switching
+            rows.flush();
+            channel.cell = cell;
+        }
+        rows.writeCell(id, time, lat, lon, elev, trackId, filedb_Id);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        rows.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        rows.close();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Writable channel that feeds a PostgreSQL COPY FROM STDIN session from several producer threads.
+Written bytes are copied into a bounded pool of buffers that a dedicated thread sends to the server,
+so producers keep working while the network write is in progress and block once the database falls
+behind by more than the pool size. Each write() is sent contiguously, so writers must write whole rows.
+@project_url: www.openaltimetry.org
+*/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.postgresql.copy.CopyIn;
+
+public class CopyInChannel implements WritableByteChannel {
+
+    // Size of each buffer handed to the sending thread
+    static public final int CHUNK_SIZE = 1 << 20;
+
+    // Marks the end of the data in the queue of full buffers
+    static private final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final CopyIn copyIn;
+
+    // Buffers ready to be filled by producers, and filled buffers waiting to be sent
+    private final BlockingQueue<ByteBuffer> free_chunks;
+    private final BlockingQueue<ByteBuffer> full_chunks;
+
+    // Thread sending the filled buffers to the server
+    private final Thread sender;
+
+    // First failure of the sending thread
+    private volatile Exception error = null;
+
+    private volatile boolean open = true;
+    private long row_count = -1;
+
+    /**
+     * @param copyIn COPY FROM STDIN session to feed
+     * @param chunks number of buffers, bounds the memory used and how far producers can run ahead
+     */
+    public CopyInChannel(CopyIn copyIn, int chunks) {
+        this.copyIn = copyIn;
+        this.free_chunks = new ArrayBlockingQueue<>(chunks);
+        this.full_chunks = new ArrayBlockingQueue<>(chunks + 1);
+        for (int i = 0; i < chunks; i++) {
+            free_chunks.add(ByteBuffer.allocate(CHUNK_SIZE));
+        }
+
+        sender = new Thread(this::send, "copy-in-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            ByteBuffer chunk = takeFreeChunk();
+            chunk.clear();
+
+            // Copy as much of src as fits in the chunk
+            int n = Math.min(chunk.remaining(), src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            chunk.put(part);
+            src.position(src.position() + n);
+
+            chunk.flip();
+            full_chunks.add(chunk);
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Same as finish(), for use as a channel.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } catch (SQLException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Send the remaining buffers and complete the COPY.
+     *
+     * @return number of rows copied
+     * @throws IOException
+     * @throws SQLException
+     */
+    public synchronized long finish() throws IOException, SQLException {
+        if (!open) {
+            return row_count;
+        }
+        open = false;
+
+        full_chunks.add(END);
+        try {
+            sender.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        if (error != null) {
+            cancel();
+            checkError();
+        }
+        row_count = copyIn.endCopy();
+        return row_count;
+    }
+
+    /**
+     * Abort the COPY, nothing written so far is kept by the server.
+     */
+    public void cancel() {
+        open = false;
+        sender.interrupt();
+        try {
+            sender.join();
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of rows copied, or -1 if the COPY is not finished
+     */
+    public long getRowCount() {
+        return row_count;
+    }
+
+    /**
+     * @return a view of this channel for one producer, closing it leaves the COPY running
+     */
+    public WritableByteChannel share() {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                return CopyInChannel.this.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return CopyInChannel.this.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Wait for a free buffer, failing if the sending thread stopped.
+     */
+    private ByteBuffer takeFreeChunk() throws IOException {
+        try {
+            while (true) {
+                checkError();
+                ByteBuffer chunk = free_chunks.poll(1, TimeUnit.SECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("COPY failed", error);
+        }
+    }
+
+    /**
+     * Body of the sending thread.
+     */
+    private void send() {
+        try {
+            while (true) {
+                ByteBuffer chunk = full_chunks.take();
+                if (chunk == END) {
+                    return;
+                }
+                copyIn.writeToCopy(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                free_chunks.add(chunk);
+            }
+        } catch (Exception ex) {
+            error = ex;
+        }
+    }
+}
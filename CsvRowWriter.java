@@ -0,0 +1,229 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: CSV writer for the fixed row layouts of the ICESat extraction (table_fileId, table_40hz and table_1hz).
+Ints, doubles and timestamps are formatted straight into the direct ByteBuffer of RowWriter, replacing String.valueOf + CSVWriter.writeNext(String[]) + FileWriter, which created a String[] and
+a String per column for every row. Like the CSVWriter it replaces, it never quotes or escapes values.
+Doubles are written in plain decimal notation with the fewest digits that parse back to the same value,
+or with Double.toString when no such short form exists, so PostgreSQL COPY reads exactly the same values.
+An instance is not thread safe, use one per thread.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+public class CsvRowWriter extends RowWriter {
+
+    // 2^53, scaled doubles below it are exact integers
+    private static final double MAX_EXACT = 9007199254740992.0;
+
+    private static final double[] POW10 = new double[18];
+    private static final long[] LONG_POW10 = new long[18];
+
+    static {
+        LONG_POW10[0] = 1;
+        POW10[0] = 1;
+        for (int i = 1; i < LONG_POW10.length; i++) {
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+            POW10[i] = LONG_POW10[i];
+        }
+    }
+
+    // Formatter of timestamp for database, owned by this writer's thread
+    private final TimestampFormatter timestamp_formatter = new TimestampFormatter();
+
+    // Scratch space for digits, written backwards
+    private final byte[] digits = new byte[20];
+
+    public CsvRowWriter(WritableByteChannel channel) {
+        super(channel);
+    }
+
+    /**
+     * Write one row of table_fileId.csv, or any row of string values.
+     */
+    public void writeRow(String[] values) throws IOException {
+        reserveRow();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                putByte(',');
+            }
+            byte[] value = values[i].getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < value.length) {
+                flush();
+            }
+            if (value.length > buffer.remaining()) {
+                // Larger than the whole buffer, write it through
+                ByteBuffer src = ByteBuffer.wrap(value);
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            } else {
+                buffer.put(value);
+            }
+        }
+        putByte('\n');
+    }
+
+    @Override
+    public void write40hz(int filedb_Id, double time, double lat, double lon, double elev, int time_idx, int trackId) throws IOException {
+        reserveRow();
+        putInt(filedb_Id);
+        buffer.put((byte) ',');
+        putDouble(time);
+        buffer.put((byte) ',');
+        timestamp_formatter.write(time, buffer);
+        buffer.put((byte) ',');
+        putDouble(lat);
+        buffer.put((byte) ',');
+        putDouble(lon);
+        buffer.put((byte) ',');
+        putDouble(elev);
+        buffer.put((byte) ',');
+        putInt(time_idx);
+        buffer.put((byte) ',');
+        if (trackId != NO_TRACK) {
+            putInt(trackId);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    @Override
+    public void writeCell(long id, double time, double lat, double lon, double elev, int trackId, int filedb_Id) throws IOException {
+        reserveRow();
+        putLong(id);
+        buffer.put((byte) ',');
+        timestamp_formatter.write(time, buffer);
+        buffer.put((byte) ',');
+        putDouble(lat);
+        buffer.put((byte) ',');
+        putDouble(lon);
+        buffer.put((byte) ',');
+        putDouble(elev);
+        buffer.put((byte) ',');
+        if (trackId != NO_TRACK) {
+            putInt(trackId);
+        }
+        buffer.put((byte) ',');
+        putInt(filedb_Id);
+        buffer.put((byte) '\n');
+    }
+
+    @Override
+    public void write1hz(int filedb_Id, double time, int trackId, int time_idx) throws IOException {
+        reserveRow();
+        putInt(filedb_Id);
+        buffer.put((byte) ',');
+        putDouble(time);
+        buffer.put((byte) ',');
+        timestamp_formatter.write(time, buffer);
+        buffer.put((byte) ',');
+        putInt(trackId);
+        buffer.put((byte) ',');
+        putInt(time_idx);
+        buffer.put((byte) '\n');
+    }
+
+    private void putByte(char c) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) c);
+    }
+
+    private void putInt(int value) {
+        putLong(value);
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                putAscii(Long.toString(value));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * Write a double with the fewest decimals, at least one, whose value
+     * m / 10^k converts back to exactly the same double. Both m and 10^k are
+     * exact doubles, so the division is correctly rounded just like parsing
+     * the decimal text, which proves the round trip.
+     */
+    private void putDouble(double value) {
+        double abs = Math.abs(value);
+        if (abs > 0 && abs < Double.POSITIVE_INFINITY) {
+            for (int k = 1; k < POW10.length; k++) {
+                double scaled = abs * POW10[k];
+                if (scaled > MAX_EXACT) {
+                    break;
+                }
+                long m = Math.round(scaled);
+                if (m / POW10[k] == abs) {
+                    if (value < 0) {
+                        buffer.put((byte) '-');
+                    }
+                    putLong(m / LONG_POW10[k]);
+                    buffer.put((byte) '.');
+                    long fraction = m % LONG_POW10[k];
+                    int pos = digits.length;
+                    for (int i = 0; i < k; i++) {
+                        digits[--pos] = (byte) ('0' + fraction % 10);
+                        fraction /= 10;
+                    }
+                    buffer.put(digits, pos, k);
+                    return;
+                }
+            }
+        }
+
+        // Zero, NaN, Infinity, or too many significant digits for the short form
+        putAscii(Double.toString(value));
+    }
+
+    private void putAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            buffer.put((byte) s.charAt(i));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Absolute paths of the datasets extracted from an ICESat HDF5 granule, ex. /Data_40HZ/Time/d_UTCTime_40.
+The paths are found once per product release by walking the group tree of its first granule, and cached,
+so the other granules of the release open their datasets directly by path. A dataset belongs to the 40Hz or
+the 1Hz data by the group it is found in (Data_40HZ or Data_1HZ), not by the order of the walk.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+// Import hdf5 libraries
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+import hdf.hdf5lib.structs.H5G_info_t;
+
+// Import java libraries
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DatasetPaths {
+
+    // Resolved paths of each product release, ex. GLAH06_634
+    private static final ConcurrentHashMap<String, DatasetPaths> CACHE = new ConcurrentHashMap<>();
+
+    // 40Hz datasets
+    public String time_40;
+    public String lat_40;
+    public String lon_40;
+    public String elev_40;
+    public String rec_ndx_40;
+
+    // 1Hz datasets
+    public String time_1;
+    public String track_1;
+    public String rec_ndx_1;
+
+    /**
+     * Get the dataset paths of a granule, from the cache of its release or by
+     * walking the group tree of the open file.
+     *
+     * @param file_id open HDF5 file
+     * @param release product release of the granule
+     * @throws Exception
+     */
+    public static DatasetPaths get(int file_id, String release) throws Exception {
+        DatasetPaths paths = CACHE.get(release);
+        if (paths == null) {
+            paths = refresh(file_id, release);
+        }
+        return paths;
+    }
+
+    /**
+     * Walk the group tree of the open file and cache the result for its release,
+     * for a new release or a granule whose layout differs from the cached one.
+     */
+    public static DatasetPaths refresh(int file_id, String release) throws Exception {
+        DatasetPaths paths = new DatasetPaths();
+        int group_id = H5.H5Gopen(file_id, "/", HDF5Constants.H5P_DEFAULT);
+        if (group_id >= 0) {
+            try {
+                paths.walk(group_id, "");
+            } finally {
+                H5.H5Gclose(group_id);
+            }
+        }
+        CACHE.put(release, paths);
+        System.out.println("Dataset paths of " + release + ": " + paths);
+        return paths;
+    }
+
+    /**
+     * Recursively record the paths of the datasets of interest under a group.
+     */
+    private void walk(int g_id, String gname) throws Exception {
+        H5G_info_t members = H5.H5Gget_info(g_id);
+        String objNames[] = new String[(int) members.nlinks];
+        int objTypes[] = new int[(int) members.nlinks];
+        int lnkTypes[] = new int[(int) members.nlinks];
+        long objRefs[] = new long[(int) members.nlinks];
+        int names_found = H5.H5Gget_obj_info_all(
+                g_id,
+                null,
+                objNames,
+                objTypes,
+                lnkTypes,
+                objRefs,
+                HDF5Constants.H5_INDEX_NAME
+        );
+
+        for (int i = 0; i < names_found; i++) {
+            String path = gname + "/" + objNames[i];
+
+            if (objTypes[i] == HDF5Constants.H5O_TYPE_GROUP) {
+                int group_id = H5.H5Gopen(g_id, objNames[i], HDF5Constants.H5P_DEFAULT);
+                if (group_id >= 0) {
+                    try {
+                        walk(group_id, path);
+                    } finally {
+                        H5.H5Gclose(group_id);
+                    }
+                }
+                continue;
+            }
+
+            String upper = gname.toUpperCase();
+            if (upper.contains("DATA_40HZ")) {
+                switch (objNames[i]) {
+                    case "d_UTCTime_40":
+                        time_40 = path;
+                        break;
+                    case "d_lat":
+                        lat_40 = path;
+                        break;
+                    case "d_lon":
+                        lon_40 = path;
+                        break;
+                    case "d_elev":
+                        elev_40 = path;
+                        break;
+                    case "i_rec_ndx":
+                        rec_ndx_40 = path;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (upper.contains("DATA_1HZ")) {
+                switch (objNames[i]) {
+                    case "d_UTCTime_1":
+                        time_1 = path;
+                        break;
+                    case "i_track":
+                        track_1 = path;
+                        break;
+                    case "i_rec_ndx":
+                        rec_ndx_1 = path;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "40hz[" + time_40 + ", " + lat_40 + ", " + lon_40 + ", " + elev_40 + ", " + rec_ndx_40 + "] "
+                + "1hz[" + time_1 + ", " + track_1 + ", " + rec_ndx_1 + "]";
+    }
+}
@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Extraction output writing one CSV file per day directory and table into the data directory:
+table_fileId.csv, table_40hz_<ymd>.csv and table_1hz_<ymd>.csv, the files loaded by LoadIcesatDB.java.
+In binary mode the 40hz and 1hz files are complete PostgreSQL binary COPY streams named .bin instead of .csv.
+With gzip the 40hz and 1hz files are compressed by GzipChannel and get a .gz suffix.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+public class DirectoryOutput implements ExtractionOutput {
+
+    // Directory the CSV files are written to
+    private final File data_dir_obj;
+
+    // Whether the 40hz and 1hz rows are in PostgreSQL binary COPY format
+    private final boolean binary;
+
+    // Whether the 40hz and 1hz files are gzip compressed
+    private final boolean gzip;
+
+    public DirectoryOutput(File data_dir_obj, boolean binary) {
+        this(data_dir_obj, binary, false);
+    }
+
+    public DirectoryOutput(File data_dir_obj, boolean binary, boolean gzip) {
+        this.data_dir_obj = data_dir_obj;
+        this.binary = binary;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public WritableByteChannel openFileId() throws IOException {
+        // Prepare a log file in CSV format that list all H5 being process
+        return open(new File(data_dir_obj, "table_fileId.csv"));
+    }
+
+    @Override
+    public WritableByteChannel open40hz(String ymd_dir) throws IOException {
+        // Each data sub directory, generate one output CSV file for Data 40_Hz
+        File csvOut_40hz = new File(data_dir_obj, "table_40hz_" + ymd_dir + suffix());
+        System.out.println("csvOut 40hz: " + csvOut_40hz.getAbsolutePath());
+        return openRows(csvOut_40hz);
+    }
+
+    @Override
+    public WritableByteChannel open1hz(String ymd_dir) throws IOException {
+        // Each data sub directory, generate one output CSV file for Data 1_Hz
+        File csvOut_1hz = new File(data_dir_obj, "table_1hz_" + ymd_dir + suffix());
+        System.out.println("csvOut 1hz: " + csvOut_1hz.getAbsolutePath());
+        return openRows(csvOut_1hz);
+    }
+
+    private String suffix() {
+        return (binary ? ".bin" : ".csv") + (gzip ? ".gz" : "");
+    }
+
+    /**
+     * Open a file of 40hz or 1hz rows, framed as a binary COPY stream in binary mode.
+     */
+    private WritableByteChannel openRows(File file) throws IOException {
+        WritableByteChannel channel = open(file);
+        if (gzip) {
+            channel = new GzipChannel(channel);
+        }
+        return binary ? BinaryRowWriter.frame(channel) : channel;
+    }
+
+    /**
+     * Open a file for writing, replacing its content.
+     */
+    private static WritableByteChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Destination of the rows extracted by HDF5.java. The extraction asks for one channel per day directory
+and table, and writes whole rows to it through a RowWriter, so the rows can go to CSV files in the data
+directory (DirectoryOutput), to one file per 1x1 degree cell (CellOutput) or straight to the database
+(see LoadIcesatDB stream mode).
+Implementations must accept channels being opened and written by several worker threads at once.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+public interface ExtractionOutput {
+
+    /**
+     * Open the channel receiving the rows of table_fileId, written once after all granules are extracted.
+     */
+    WritableByteChannel openFileId() throws IOException;
+
+    /**
+     * Open the channel receiving the Data 40_Hz rows of one day directory.
+     */
+    WritableByteChannel open40hz(String ymd_dir) throws IOException;
+
+    /**
+     * Open the writer of the Data 40_Hz rows of one day directory, a row writer over open40hz by default.
+     *
+     * @param binary write the rows in PostgreSQL binary COPY format instead of CSV
+     */
+    default Writer40hz writer40hz(String ymd_dir, boolean binary) throws IOException {
+        return RowWriter.create(open40hz(ymd_dir), binary);
+    }
+
+    /**
+     * Open the channel receiving the Data 1_Hz rows of one day directory.
+     */
+    WritableByteChannel open1hz(String ymd_dir) throws IOException;
+}
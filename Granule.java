@@ -0,0 +1,122 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: One ICESat HDF5 granule scheduled for extraction, with the database file id assigned to it
+and the metadata tokens parsed from its file name.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.File;
+
+public class Granule {
+
+    // Database file id, written as the first column of every row extracted from this granule
+    public final int filedb_Id;
+
+    // Day directory that contains the granule, ex. 2003.02.20
+    public final File ymd_dir_obj;
+
+    // HDF5 file name, ex. GLAH06_634_1102_001_0072_1_01_0001.H5
+    public final String file_name;
+
+    public Granule(int filedb_Id, File ymd_dir_obj, String file_name) {
+        this.filedb_Id = filedb_Id;
+        this.ymd_dir_obj = ymd_dir_obj;
+        this.file_name = file_name;
+    }
+
+    /**
+     * @return absolute path of the HDF5 file
+     */
+    public String getPath() {
+        return new File(ymd_dir_obj, file_name).getAbsolutePath();
+    }
+
+    /**
+     * @return product release of the granule, type and release tokens of the file name, ex. GLAH06_634
+     */
+    public String getRelease() {
+        String[] tokens = file_name.split("\\.")[0].split("_");
+        return tokens.length > 1 ? tokens[0] + "_" + tokens[1] : tokens[0];
+    }
+
+    /**
+     * Build the row of table_fileId.csv for this granule.
+     *
+     * Each Icesat HDF5 data has specific name convenion format:
+     * ex: GLAH06_634_1102_001_0072_1_01_0001.H5
+     * GLAxx_ymm_prkk_ccc_tttt_s_nn_ffff.eee
+     *
+     * xx = Type ID number
+     * y = “Y” code that indicates calibration levels of POD and PAD.  Refer to the “YXX Release Number Convention Document” for details.
+     * mm = Release number for GSAS version that created the product.
+     * p = Repeat ground track phase
+     * r = Reference orbit number
+     * kk = instance #incremented every time we enter a different reference orbit
+     * ccc = Cycle (000-999)
+     * tttt = Track (0000-2600)
+     * s = Segment, (0=none, 1-4 correspond to 50° lat/lon breaks)
+     * nn = granule version number (the number of times this granule is created for a specific release)
+     * ffff =file type. (numerical, CCB assigned for multiple files as needed for data of same time period for a specific HHHxx, i.e. multi-file granule)
+     * eee = file extension- dat for GLA01-15; qap for corresponding qap file;
+     * hdf for HDF browse packages; png for corresponding non-hdf browse files; vav for corresponding validation and verification file; met for metadata files
+     */
+    public String[] toFileIdRow() {
+        String[] fn_tokens = file_name.split("\\.");
+
+        String[] tokens = fn_tokens[0].split("_");
+        String token_xx = tokens[0];
+        String token_ymm = tokens[1];
+        String token_prkk = tokens[2];
+        String token_ccc = tokens[3];
+        String token_tttt = tokens[4];
+        String token_s = tokens[5];
+        String token_nn = tokens[6];
+        String token_ffff = tokens[7];
+        String token_eee = fn_tokens[1];
+
+        return new String[]{
+            String.valueOf(filedb_Id),
+            ymd_dir_obj.getPath(),
+            file_name,
+            token_xx,
+            token_ymm,
+            token_prkk,
+            token_ccc,
+            token_tttt,
+            token_s,
+            token_nn,
+            token_ffff,
+            token_eee
+        };
+    }
+}
@@ -0,0 +1,374 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Per-thread extraction context for one ICESat HDF5 granule, so several extractors can run side by side
+in HDF5.java without sharing state. The 40Hz datasets are read in lockstep, one fixed-size hyperslab block at
+a time, into primitive buffers allocated once per extractor, so the heap used does not grow with the size of
+a granule. The much smaller 1Hz datasets are read whole. The datasets are opened directly by the paths that
+DatasetPaths cached for the granule's product release.
+The track_id of each 40Hz point is taken from the 1Hz record with the same i_rec_ndx while both are in memory,
+with a cursor that moves forward through the 1Hz records as the 40Hz records come in i_rec_ndx order.
+An instance must only be used by one thread at a time.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+// Import hdf5 libraries
+import hdf.hdf5lib.H5;
+import hdf.hdf5lib.HDF5Constants;
+
+// Import java libraries
+import java.io.IOException;
+import java.util.Arrays;
+
+public class GranuleExtractor {
+
+    // Number of 40Hz points read from each dataset at a time
+    public static final int BLOCK_SIZE = Integer.getInteger("hdf5.block_size", 65536);
+
+    // 1Hz data
+    private double[] data1_time;
+    private int[] data1_trackId;
+    private int[] data1_time_idx;
+
+    // 1Hz i_rec_ndx and track_id in i_rec_ndx order, for the 40Hz track_id merge
+    private int[] merge_time_idx;
+    private int[] merge_trackId;
+    private int merge_cursor;
+
+    // 40Hz datasets of the current granule, opened by openDatasets and read block by block
+    private int dataset40_time = -1;
+    private int dataset40_lat = -1;
+    private int dataset40_lon = -1;
+    private int dataset40_elev = -1;
+    private int dataset40_time_idx = -1;
+
+    // 40Hz data of the current block
+    private final double[] data40_time = new double[BLOCK_SIZE];
+    private final double[] data40_lat = new double[BLOCK_SIZE];
+    private final double[] data40_lon = new double[BLOCK_SIZE];
+    private final double[] data40_elev = new double[BLOCK_SIZE];
+    private final int[] data40_time_idx = new int[BLOCK_SIZE];
+
+    /**
+     * Extract one granule and write its 40hz and 1hz rows.
+     *
+     * @param granule the granule to extract
+     * @param out_40hz writer for Data 40_Hz of the granule's day
+     * @param out_1hz writer for Data 1_Hz of the granule's day
+     * @return number of 40hz points found in the granule, or -1 if the file or its datasets could not be opened
+     * @throws Exception
+     */
+    public long extract(Granule granule, Writer40hz out_40hz, RowWriter out_1hz) throws Exception {
+        // First, open HDF5 file to get file_id
+        int file_id = H5.H5Fopen(granule.getPath(), HDF5Constants.H5F_ACC_RDONLY, HDF5Constants.H5P_DEFAULT);
+
+        // Validate HDF5 by making sure file_id > 0
+        if (file_id < 0) {
+            return -1;
+        }
+
+        long npoints = 0;
+        try {
+            String release = granule.getRelease();
+            DatasetPaths paths = DatasetPaths.get(file_id, release);
+
+            // The layout differs from the granule the paths were cached from, walk this one
+            if (!openDatasets(file_id, paths)) {
+                paths = DatasetPaths.refresh(file_id, release);
+                if (!openDatasets(file_id, paths)) {
+                    // Skip the granule, the manifest records it as not opened
+                    System.out.println("Cannot open datasets of " + granule.file_name + ": " + paths);
+                    return -1;
+                }
+            }
+
+            npoints = write40hzRows(granule.filedb_Id, out_40hz);
+            write1hzRows(granule.filedb_Id, out_1hz);
+        } finally {
+            close40hzDatasets();
+
+            // Close the file.
+            H5.H5Fclose(file_id);
+        }
+
+        return npoints;
+    }
+
+    /**
+     * Open the 40hz datasets for block reads and read the 1hz datasets whole.
+     *
+     * @return false if a dataset could not be opened by its path
+     */
+    private boolean openDatasets(int file_id, DatasetPaths paths) throws Exception {
+        // Reset all data containers before process new file
+        close40hzDatasets();
+        data1_time = null;
+        data1_trackId = null;
+        data1_time_idx = null;
+        merge_time_idx = null;
+        merge_trackId = null;
+
+        try {
+            dataset40_time = openDataset(file_id, paths.time_40);
+            dataset40_lat = openDataset(file_id, paths.lat_40);
+            dataset40_lon = openDataset(file_id, paths.lon_40);
+            dataset40_elev = openDataset(file_id, paths.elev_40);
+            dataset40_time_idx = openDataset(file_id, paths.rec_ndx_40);
+
+            // Both data 1hz and data 40hz using the UTC Time indexing values to compare and map
+            // to get the track_id from data 1hz that data 40hz don't have
+            data1_time = (double[]) readAll(file_id, paths.time_1, HDF5Constants.H5T_NATIVE_DOUBLE);
+            data1_trackId = (int[]) readAll(file_id, paths.track_1, HDF5Constants.H5T_NATIVE_INT);
+            data1_time_idx = (int[]) readAll(file_id, paths.rec_ndx_1, HDF5Constants.H5T_NATIVE_INT);
+            prepareTrackMerge();
+        } catch (Exception e) {
+            close40hzDatasets();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a whole 1hz dataset, or return null if the release has no such dataset.
+     */
+    private static Object readAll(int file_id, String path, int mem_type_id) throws Exception {
+        if (path == null) {
+            return null;
+        }
+
+        int dataset_id = H5.H5Dopen(file_id, path, HDF5Constants.H5P_DEFAULT);
+        try {
+            int space_id = H5.H5Dget_space(dataset_id);
+            long npoints = H5.H5Sget_select_npoints(space_id);
+            H5.H5Sclose(space_id);
+
+            Object buffer = mem_type_id == HDF5Constants.H5T_NATIVE_INT
+                    ? new int[(int) npoints]
+                    : new double[(int) npoints];
+            H5.H5Dread(dataset_id,
+                    mem_type_id,
+                    HDF5Constants.H5S_ALL,
+                    HDF5Constants.H5S_ALL,
+                    HDF5Constants.H5P_DEFAULT,
+                    buffer
+            );
+            return buffer;
+        } finally {
+            H5.H5Dclose(dataset_id);
+        }
+    }
+
+    /**
+     * Read the 40hz datasets block by block and write the good points.
+     *
+     * @return number of 40hz points in the granule
+     */
+    private long write40hzRows(int filedb_Id, Writer40hz out_40hz) throws Exception {
+        if (dataset40_time < 0) {
+            return 0;
+        }
+
+        int space_id = H5.H5Dget_space(dataset40_time);
+        long npoints = H5.H5Sget_select_npoints(space_id);
+        H5.H5Sclose(space_id);
+
+        for (long start = 0; start < npoints; start += BLOCK_SIZE) {
+            int count = (int) Math.min(BLOCK_SIZE, npoints - start);
+
+            readBlock(dataset40_time, HDF5Constants.H5T_NATIVE_DOUBLE, start, count, data40_time);
+            readBlock(dataset40_lat, HDF5Constants.H5T_NATIVE_DOUBLE, start, count, data40_lat);
+            readBlock(dataset40_lon, HDF5Constants.H5T_NATIVE_DOUBLE, start, count, data40_lon);
+            readBlock(dataset40_elev, HDF5Constants.H5T_NATIVE_DOUBLE, start, count, data40_elev);
+            readBlock(dataset40_time_idx, HDF5Constants.H5T_NATIVE_INT, start, count, data40_time_idx);
+
+            // For loop to access each point of the block
+            for (int m = 0; m < count; m++) {
+
+                // Ignore records that have NULL values for LAT
+                // Which are marked with max float number
+                if (data40_lat[m] > 90) {
+                    continue;
+                }
+
+                // Ignore records that have NULL values for LNG
+                // Which are marked with max float number
+                if (data40_lon[m] > 360) {
+                    continue;
+                }
+
+                // Good data, write each record for data 40hz
+                out_40hz.write40hz(filedb_Id, data40_time[m], data40_lat[m], data40_lon[m], data40_elev[m], data40_time_idx[m],
+                        trackOf(data40_time_idx[m]));
+            }
+        }
+        return npoints;
+    }
+
+    /**
+     * Read count elements of a one dimensional dataset, starting at start,
+     * into the beginning of buffer.
+     */
+    private static void readBlock(int dataset_id, int mem_type_id, long start, int count, Object buffer) throws Exception {
+        if (dataset_id < 0) {
+            throw new IllegalStateException("40Hz dataset missing from granule");
+        }
+
+        int file_space_id = H5.H5Dget_space(dataset_id);
+        int mem_space_id = -1;
+        try {
+            H5.H5Sselect_hyperslab(file_space_id, HDF5Constants.H5S_SELECT_SET,
+                    new long[]{start}, null, new long[]{count}, null);
+            mem_space_id = H5.H5Screate_simple(1, new long[]{count}, null);
+            H5.H5Dread(dataset_id, mem_type_id, mem_space_id, file_space_id, HDF5Constants.H5P_DEFAULT, buffer);
+        } finally {
+            if (mem_space_id >= 0) {
+                H5.H5Sclose(mem_space_id);
+            }
+            H5.H5Sclose(file_space_id);
+        }
+    }
+
+    /**
+     * Order the 1hz i_rec_ndx and track_id for the merge. They are normally
+     * already in i_rec_ndx order and used as they are.
+     */
+    private void prepareTrackMerge() {
+        merge_cursor = 0;
+        merge_time_idx = null;
+        merge_trackId = null;
+        if (data1_time_idx == null || data1_trackId == null) {
+            return;
+        }
+
+        int n = Math.min(data1_time_idx.length, data1_trackId.length);
+        boolean sorted = true;
+        for (int i = 1; i < n && sorted; i++) {
+            sorted = data1_time_idx[i - 1] <= data1_time_idx[i];
+        }
+        if (sorted) {
+            merge_time_idx = data1_time_idx;
+            merge_trackId = data1_trackId;
+            return;
+        }
+
+        // Sort i_rec_ndx with the record position in the low bits
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) data1_time_idx[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        merge_time_idx = new int[n];
+        merge_trackId = new int[n];
+        for (int i = 0; i < n; i++) {
+            merge_time_idx[i] = (int) (keys[i] >> 32);
+            merge_trackId[i] = data1_trackId[(int) keys[i]];
+        }
+    }
+
+    /**
+     * @return track_id of the 1hz record with the given i_rec_ndx, or RowWriter.NO_TRACK
+     */
+    private int trackOf(int time_idx) {
+        if (merge_time_idx == null) {
+            return RowWriter.NO_TRACK;
+        }
+        int n = Math.min(merge_time_idx.length, merge_trackId.length);
+
+        // A 40hz record out of order, search again from the start
+        if (merge_cursor > 0 && merge_time_idx[merge_cursor - 1] >= time_idx) {
+            merge_cursor = 0;
+            int high = n;
+            while (merge_cursor < high) {
+                int mid = (merge_cursor + high) >>> 1;
+                if (merge_time_idx[mid] < time_idx) {
+                    merge_cursor = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+        }
+
+        while (merge_cursor < n && merge_time_idx[merge_cursor] < time_idx) {
+            merge_cursor++;
+        }
+        if (merge_cursor < n && merge_time_idx[merge_cursor] == time_idx) {
+            return merge_trackId[merge_cursor];
+        }
+        return RowWriter.NO_TRACK;
+    }
+
+    /**
+     * Write the 1hz rows of the current granule.
+     */
+    private void write1hzRows(int filedb_Id, RowWriter out_1hz) throws IOException {
+        // Done extracting data, if data 1hz contaner is not empty then start writing data
+        if (data1_time != null && data1_time.length > 0) {
+
+            // For loop to access each point from data 1hz
+            // Remember for data 1hz we don't need to validate data as data 40hz
+            // because data 1hz is for mapping track index with 40hz only
+            for (int m = 0; m < data1_time.length; m++) {
+
+                // Write each record for data 1hz
+                out_1hz.write1hz(filedb_Id, data1_time[m], data1_trackId[m], data1_time_idx[m]);
+            }
+        }
+    }
+
+    /**
+     * Close the 40hz datasets opened by openDatasets.
+     */
+    private void close40hzDatasets() throws Exception {
+        int[] datasets = {dataset40_time, dataset40_lat, dataset40_lon, dataset40_elev, dataset40_time_idx};
+        dataset40_time = -1;
+        dataset40_lat = -1;
+        dataset40_lon = -1;
+        dataset40_elev = -1;
+        dataset40_time_idx = -1;
+
+        for (int dataset_id : datasets) {
+            if (dataset_id >= 0) {
+                H5.H5Dclose(dataset_id);
+            }
+        }
+    }
+
+    /**
+     * Open a 40hz dataset by its absolute path, or return -1 if the release has no such dataset.
+     */
+    private static int openDataset(int file_id, String path) throws Exception {
+        if (path == null) {
+            return -1;
+        }
+        return H5.H5Dopen(file_id, path, HDF5Constants.H5P_DEFAULT);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Manifest of the granules extracted by HDF5.java, kept next to the CSV files in the data directory, so a
+rerun only extracts the day directories with new, changed or removed granules and keeps the file ids already
+assigned. Each line records one granule:
+	filedb_Id,path,size,mtime,checksum,output,format,rows
+where path is relative to the data directory (ex. 2003.02.20/GLAH06_634_1102_001_0072_1_01_0001.H5), checksum
+is the CRC32 of the file, output is the day directory whose files hold its rows and rows is the number of 40hz
+points, -1 if the granule could not be opened.
+The lines of a day are appended once its files are complete, so after a crash the rerun continues with the
+days that were not finished. A later line replaces an earlier one for the same path, and a completed run
+rewrites the manifest with one line per granule.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+public class GranuleManifest implements Closeable {
+
+    // Manifest file, ex. extraction_manifest.csv in the data base directory
+    private final File manifest_file;
+
+    // Format of the 40hz and 1hz files, "csv" or "binary", with ".gz" when compressed;
+    // a day written in another format is extracted again
+    private final String format;
+
+    // Latest entry of each granule, keyed by path
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    // Number of entries of each day directory
+    private final Map<String, Integer> day_counts = new HashMap<>();
+
+    // Highest file id recorded, new granules are numbered after it
+    private int max_Id = 0;
+
+    // Appends the entries of completed days
+    private Writer writer;
+
+    /**
+     * One granule of the manifest.
+     */
+    public static class Entry {
+
+        public final int filedb_Id;
+        public final String path;
+        public final long size;
+        public final long mtime;
+        public final long checksum;
+        public final String output;
+        public final String format;
+        public final long rows;
+
+        public Entry(int filedb_Id, String path, long size, long mtime, long checksum, String output, String format, long rows) {
+            this.filedb_Id = filedb_Id;
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+            this.checksum = checksum;
+            this.output = output;
+            this.format = format;
+            this.rows = rows;
+        }
+
+        static Entry parse(String line) {
+            String[] tokens = line.split(",");
+            return new Entry(
+                    Integer.parseInt(tokens[0]),
+                    tokens[1],
+                    Long.parseLong(tokens[2]),
+                    Long.parseLong(tokens[3]),
+                    Long.parseLong(tokens[4], 16),
+                    tokens[5],
+                    tokens[6],
+                    Long.parseLong(tokens[7])
+            );
+        }
+
+        @Override
+        public String toString() {
+            return filedb_Id + "," + path + "," + size + "," + mtime + "," + Long.toHexString(checksum)
+                    + "," + output + "," + format + "," + rows;
+        }
+    }
+
+    private GranuleManifest(File manifest_file, String format) {
+        this.manifest_file = manifest_file;
+        this.format = format;
+    }
+
+    /**
+     * Read the manifest file, or start an empty manifest if it does not exist yet.
+     *
+     * @param manifest_file manifest file
+     * @param format format of the 40hz and 1hz files of this run, "csv" or "binary", with ".gz" when compressed
+     * @throws IOException
+     */
+    public static GranuleManifest load(File manifest_file, String format) throws IOException {
+        GranuleManifest manifest = new GranuleManifest(manifest_file, format);
+        if (manifest_file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(manifest_file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    try {
+                        manifest.put(Entry.parse(line));
+                    } catch (RuntimeException e) {
+                        // Last line cut short by a crash
+                        System.err.println("Ignoring manifest line: " + line);
+                    }
+                }
+            }
+        }
+        System.out.println("Manifest " + manifest_file.getAbsolutePath() + ": " + manifest.entries.size() + " granules");
+        return manifest;
+    }
+
+    private void put(Entry entry) {
+        Entry previous = entries.put(entry.path, entry);
+        if (previous != null) {
+            day_counts.merge(previous.output, -1, Integer::sum);
+        }
+        day_counts.merge(entry.output, 1, Integer::sum);
+        max_Id = Math.max(max_Id, entry.filedb_Id);
+    }
+
+    private static String path(String ymd_dir, String file_name) {
+        return ymd_dir + "/" + file_name;
+    }
+
+    /**
+     * @return the file id recorded for a granule, or the next free file id for a new granule
+     */
+    public synchronized int assignId(String ymd_dir, String file_name) {
+        Entry entry = entries.get(path(ymd_dir, file_name));
+        return entry != null ? entry.filedb_Id : ++max_Id;
+    }
+
+    /**
+     * @return the file ids of the granules whose rows are in the files of a day directory
+     */
+    public synchronized int[] fileIds(String ymd_dir) {
+        int[] ids = new int[day_counts.getOrDefault(ymd_dir, 0)];
+        int n = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.output.equals(ymd_dir)) {
+                ids[n++] = entry.filedb_Id;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Whether the files of a day directory are up to date: every granule of the day
+     * was extracted in this format, is unchanged since, and no granule was removed.
+     *
+     * @param ymd_dir day directory
+     * @param granules granules found in the day directory
+     * @throws IOException
+     */
+    public synchronized boolean isCurrent(String ymd_dir, List<Granule> granules) throws IOException {
+        if (day_counts.getOrDefault(ymd_dir, 0) != granules.size()) {
+            return false;
+        }
+        for (Granule granule : granules) {
+            String path = path(ymd_dir, granule.file_name);
+            Entry entry = entries.get(path);
+            if (entry == null || !entry.output.equals(ymd_dir) || !entry.format.equals(format)) {
+                return false;
+            }
+
+            File file = new File(granule.getPath());
+            if (file.length() != entry.size) {
+                return false;
+            }
+            if (file.lastModified() != entry.mtime) {
+                // Touched or copied again, compare the content
+                if (checksum(file) != entry.checksum) {
+                    return false;
+                }
+                put(new Entry(entry.filedb_Id, path, entry.size, file.lastModified(), entry.checksum,
+                        entry.output, entry.format, entry.rows));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the granules of an up to date day that were extracted, the ones that could be opened
+     */
+    public synchronized List<Granule> extracted(String ymd_dir, List<Granule> granules) {
+        List<Granule> extracted = new ArrayList<>();
+        for (Granule granule : granules) {
+            Entry entry = entries.get(path(ymd_dir, granule.file_name));
+            if (entry != null && entry.rows >= 0) {
+                extracted.add(granule);
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * Build the entry of a granule that was just extracted, reading the file for its checksum.
+     *
+     * @param ymd_dir day directory whose files hold the rows of the granule
+     * @param granule the granule
+     * @param rows number of 40hz points, -1 if the granule could not be opened
+     * @throws IOException
+     */
+    public Entry newEntry(String ymd_dir, Granule granule, long rows) throws IOException {
+        File file = new File(granule.getPath());
+        return new Entry(granule.filedb_Id, path(ymd_dir, granule.file_name), file.length(), file.lastModified(),
+                checksum(file), ymd_dir, format, rows);
+    }
+
+    /**
+     * Record the entries of a day whose files are complete.
+     *
+     * @throws IOException
+     */
+    public synchronized void commit(List<Entry> day_entries) throws IOException {
+        if (writer == null) {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(manifest_file, true), StandardCharsets.UTF_8));
+        }
+        for (Entry entry : day_entries) {
+            put(entry);
+            writer.write(entry.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Rewrite the manifest with one line per granule still in the data directory,
+     * after a run that completed every day.
+     *
+     * @param days granules of each day directory
+     * @throws IOException
+     */
+    public synchronized void compact(Map<String, List<Granule>> days) throws IOException {
+        close();
+
+        File tmp_file = new File(manifest_file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp_file), StandardCharsets.UTF_8))) {
+            Set<String> paths = new HashSet<>();
+            for (Map.Entry<String, List<Granule>> day : days.entrySet()) {
+                for (Granule granule : day.getValue()) {
+                    String path = path(day.getKey(), granule.file_name);
+                    Entry entry = entries.get(path);
+                    if (entry != null) {
+                        out.write(entry.toString());
+                        out.write('\n');
+                        paths.add(path);
+                    }
+                }
+            }
+            entries.keySet().retainAll(paths);
+        }
+        Files.move(tmp_file.toPath(), manifest_file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        day_counts.clear();
+        for (Entry entry : entries.values()) {
+            day_counts.merge(entry.output, 1, Integer::sum);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * @return CRC32 of the content of a file
+     */
+    public static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Channel writing gzip compressed data, compressed in blocks on a shared pool of threads. Each block of
+BLOCK_SIZE bytes is compressed into a separate gzip member and the members are written in order; a gzip
+file made of several members decompresses as the concatenation of their data, with gzip, zcat or
+GZIPInputStream, so the file reads like one compressed with a single stream.
+At most two blocks per compression thread are pending, a writer then waits for the oldest one.
+An instance is not thread safe, use one per writer.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+public class GzipChannel implements WritableByteChannel {
+
+    // Number of uncompressed bytes in each gzip member
+    public static final int BLOCK_SIZE = Integer.getInteger("hdf5.gzip_block_size", 1 << 20);
+
+    // Number of threads compressing blocks, shared by all channels
+    public static final int THREADS = Integer.getInteger("hdf5.gzip_threads", Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "gzip");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Compressed file
+    private final WritableByteChannel channel;
+
+    // Compressed members of the blocks submitted, in file order
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    // Blocks already compressed, for reuse
+    private final ConcurrentLinkedQueue<byte[]> free_blocks = new ConcurrentLinkedQueue<>();
+
+    // Block being filled
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int length = 0;
+
+    // Whether a block was submitted, an empty file still gets one empty member
+    private boolean started = false;
+
+    private boolean open = true;
+
+    public GzipChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            int count = Math.min(src.remaining(), BLOCK_SIZE - length);
+            src.get(block, length, count);
+            length += count;
+            if (length == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Compress the block being filled on the pool and start a new one.
+     */
+    private void submitBlock() throws IOException {
+        started = true;
+        byte[] data = block;
+        int data_length = length;
+        pending.add(POOL.submit(() -> {
+            try {
+                return compress(data, data_length);
+            } finally {
+                free_blocks.add(data);
+            }
+        }));
+
+        byte[] free = free_blocks.poll();
+        block = free != null ? free : new byte[BLOCK_SIZE];
+        length = 0;
+
+        // Write the members that are ready, and wait once too many are pending
+        while (!pending.isEmpty() && (pending.size() > 2 * THREADS || pending.peek().isDone())) {
+            writeMember();
+        }
+    }
+
+    /**
+     * Wait for the oldest pending member and write it.
+     */
+    private void writeMember() throws IOException {
+        byte[] member;
+        try {
+            member = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot compress block", e.getCause());
+        }
+        ByteBuffer src = ByteBuffer.wrap(member);
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 << 10);
+        gzip.write(data, 0, length);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Compress the last block, write every pending member and close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            if (length > 0 || !started) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeMember();
+            }
+        } finally {
+            for (Future<byte[]> member : pending) {
+                member.cancel(false);
+            }
+            channel.close();
+        }
+    }
+}
@@ -30,65 +30,1013 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 @author: Kai Lin (klin@ucsd.edu)
 @date: July 24th 2017
 @desc: Program to partition the larger ICESat table “data_40hz” into smaller tables in the schema “icesat_partition” for better query performance. Each partitioned table contains all the points in one latitude degree by one longitude degree box.
+A box holds the points of lat <= lat < lat + 1 and lon <= lon < lon + 1, the last boxes also hold the points on lat 90 and lon 360, in every mode.
+The partition tables are only built for the boxes that hold points, on “partition.threads” connections at the same time, largest box first.
+Each row is written with its “fileid”, the tables are never updated afterwards. The granule links stay in “hdf5_file”, see LinkDictionary.
+Run with the argument “incremental” to only append the rows added to “data_40hz” since the last run to the tables of their boxes, with their “icesat_partitions.track_tables” entries, instead of rebuilding every table.
+Run with the argument “single” to build all the partition tables from one read of “data_40hz” instead of one query per table.
+Run with the argument “adaptive” to split “data_40hz” into tiles of balanced sizes instead of one degree boxes: dense boxes are split into quadrants and sparse ones share a larger tile, the tiles are listed in “icesat_partitions.tiles”.
+With “-Dpartition.hilbert=true” the rows of each partition table are written in Hilbert curve order of lat/lon, then time, so the points of a box are stored in few pages, instead of the order of “data_40hz”; the key is computed by the immutable, parallel safe SQL function “icesat_partitions.hilbert_key”. “-Dpartition.index=brin” indexes the tables with a BRIN index instead of a B-tree.
+Run with the argument “native” to turn “data_40hz” into a natively partitioned table instead, whose partitions are the same “t_<lat>_<lon>” tables: rows COPYed into “data_40hz” go straight to their partition and queries on lat/lon only scan the partitions of their box. The rows are copied from “data_40hz_unpartitioned”, the renamed table, which is dropped in the transaction of the copy; a run refuses to start while a table of that name is left from elsewhere. A failed run resumes where it stopped, and the default, “single”, “incremental” and “adaptive” modes refuse to run on a natively partitioned “data_40hz”.
 @project_url: www.openaltimetry.org
 
 */
 
 package org.openaltimetry.icesat.db.util;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jnative.CellBuckets;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+import org.postgresql.core.BaseConnection;
 
 public class ICESATDBPartition {
 
-    private static void createTableAndInsert(Connection connection, int lat, int lng) throws Exception {
+    // Number of connections building partition tables at the same time
+    private static final int THREADS = Integer.parseInt(System.getProperty("partition.threads", "1"));
+
+    // Root tiles of the adaptive layout are ROOT_DEGREES by ROOT_DEGREES degree
+    private static final int ROOT_DEGREES = 4;
+
+    // Bins per degree of the histogram of the adaptive layout, the smallest tile is one bin
+    private static final int BINS_PER_DEGREE = 8;
+    private static final int LAT_BINS = 180 * BINS_PER_DEGREE;
+    private static final int LON_BINS = 360 * BINS_PER_DEGREE;
+
+    // Bin of a point in the histogram of the adaptive layout, the points on lat 90 or lon 360 are in the last bin
+    private static final String LAT_BIN = "least(floor((lat + 90) * " + BINS_PER_DEGREE + "), " + (LAT_BINS - 1) + ")";
+    private static final String LON_BIN = "least(floor(lon * " + BINS_PER_DEGREE + "), " + (LON_BINS - 1) + ")";
+
+    // An adaptive tile holding more points is split into its quadrants
+    private static final long TILE_POINTS = Long.parseLong(System.getProperty("partition.tile_points", "2000000"));
+
+    // Write the rows of the partition tables in Hilbert curve order of lat/lon, then time, off by default
+    private static final boolean HILBERT = Boolean.parseBoolean(System.getProperty("partition.hilbert", "false"));
+
+    // Order of the Hilbert curve, the globe is a 2^HILBERT_ORDER by 2^HILBERT_ORDER grid
+    private static final int HILBERT_ORDER = 16;
+
+    // Index of the partition tables, btree or brin
+    private static final String INDEX = System.getProperty("partition.index", "btree");
+
+    // Table pages summarized by each range of a BRIN index
+    private static final int BRIN_PAGES = Integer.parseInt(System.getProperty("partition.brin_pages", "32"));
+
+    // Directory of the cell files of the single pass build
+    private static final String CELL_DIR = System.getProperty("partition.cell_dir", "cells");
+
+    // Partition table columns, in the order of the cell files
+    private static final String COLUMNS = "id, datetime_40, lat, lon, elev, track_id, fileid";
+
+    // Points of data_40hz that belong to a cell
+    private static final String IN_RANGE = "(lat >= -90 and lat <= 90) AND (lon >= 0 and lon <= 360)";
+
+    /**
+     * Work on one partition table, run by runParallel with a connection of its pool.
+     */
+    interface PartitionTask {
+        void run(Connection connection) throws Exception;
+    }
+
+    /**
+     * One table of the adaptive layout, the points of the size by size bins from bin
+     * (lat_bin, lon_bin), lat_min <= lat < lat_max and lon_min <= lon < lon_max.
+     */
+    private static class Tile {
+        final String name;
+        final int lat_bin;
+        final int lon_bin;
+        final int size;
+        final double lat_min;
+        final double lat_max;
+        final double lon_min;
+        final double lon_max;
+        final long points;
+
+        Tile(String name, int lat_bin, int lon_bin, int size, long points) {
+            this.name = name;
+            this.lat_bin = lat_bin;
+            this.lon_bin = lon_bin;
+            this.size = size;
+            this.lat_min = -90 + (double) lat_bin / BINS_PER_DEGREE;
+            this.lat_max = -90 + (double) (lat_bin + size) / BINS_PER_DEGREE;
+            this.lon_min = (double) lon_bin / BINS_PER_DEGREE;
+            this.lon_max = (double) (lon_bin + size) / BINS_PER_DEGREE;
+            this.points = points;
+        }
+    }
+
+    /**
+     * Drop and create the empty partition table of a lat/lng cell. The id is a bigint
+     * so it can also hold the ids of the cell files written by jnative.CellOutput.
+     * The fileid of each row is written with the row, so AddFileId does
+     * not have to update the table afterwards.
+     */
+    public static void createTable(Connection connection, int lat, int lng) throws Exception {
+        createTable(connection, "t_" + lat + "_" + lng);
+    }
+
+    private static void createTable(Connection connection, String name) throws Exception {
 
         Statement stmt = connection.createStatement();
 
         // drop the table if exists
-        String sql = "DROP TABLE IF EXISTS icesat_partitions.\"t_" + lat + "_" + lng + "\" CASCADE";
+        String sql = "DROP TABLE IF EXISTS icesat_partitions.\"" + name + "\" CASCADE";
         stmt.execute(sql);
         
         // create a table for the lat/lng
-        sql = "CREATE TABLE icesat_partitions.\"t_" + lat + "_" + lng + "\" (\n"
-                + "    id integer  PRIMARY KEY,\n"
+        sql = "CREATE TABLE icesat_partitions.\"" + name + "\" (\n"
+                + "    id bigint  PRIMARY KEY,\n"
                 + "    datetime_40 timestamp without time zone,\n"
                 + "    lat double precision,\n"
                 + "    lon double precision,\n"
                 + "    elev double precision,\n"
-                + "    track_id integer\n"
+                + "    track_id integer,\n"
+                + "    fileid integer\n"
                 + ");          ";
         stmt.execute(sql);
+    }
+
+    /**
+     * Create the lat/lng/time index of the partition table of a cell, once it is filled.
+     */
+    public static void createIndex(Connection connection, int lat, int lng) throws Exception {
+        createIndex(connection, "t_" + lat + "_" + lng);
+    }
+
+    private static void createIndex(Connection connection, String name) throws Exception {
+
+        Statement stmt = connection.createStatement();
+
+        // create index on lat/lng/time
+        String sql = "CREATE INDEX \"" + name + "_lat_lon_time_idx\" "
+                + "ON icesat_partitions.\"" + name + "\"" + indexMethod() + "(lat, lon, datetime_40)" + indexOptions();
+        stmt.execute(sql);
+    }
+
+    /**
+     * @return the access method clause of the lat/lng/time indexes
+     */
+    private static String indexMethod() {
+        return INDEX.equals("brin") ? " USING brin " : "";
+    }
+
+    /**
+     * @return the storage parameters of the lat/lng/time indexes
+     */
+    private static String indexOptions() {
+        return INDEX.equals("brin") ? " WITH (pages_per_range = " + BRIN_PAGES + ")" : "";
+    }
+
+    /**
+     * @return the ORDER BY clause that writes the rows of a partition table in Hilbert
+     * curve order, the rows of a Hilbert cell in time order, none if HILBERT is off
+     */
+    private static String orderBy() {
+        return HILBERT ? " \nORDER BY icesat_partitions.hilbert_key(lat, lon), datetime_40" : "";
+    }
+
+    /**
+     * Create the function icesat_partitions.hilbert_key(lat, lon), the distance of the
+     * point along the Hilbert curve of order HILBERT_ORDER that covers the globe. Points
+     * close on the curve are close on the ground, so the rows of a box sorted by this key
+     * are stored in few pages and a BRIN index of lat/lon summarizes them tightly.
+     */
+    public static void createHilbertKey(Connection connection) throws Exception {
+
+        long n = 1L << HILBERT_ORDER;
+        Statement stmt = connection.createStatement();
+        String sql = "CREATE OR REPLACE FUNCTION icesat_partitions.hilbert_key(lat double precision, lon double precision) \n"
+                + "RETURNS bigint AS $$ \n"
+                + "DECLARE \n"
+                + "    x bigint := greatest(least(floor(lon / 360 * " + n + "), " + (n - 1) + "), 0); \n"
+                + "    y bigint := greatest(least(floor((lat + 90) / 180 * " + n + "), " + (n - 1) + "), 0); \n"
+                + "    s bigint := " + (n / 2) + "; \n"
+                + "    rx bigint; \n"
+                + "    ry bigint; \n"
+                + "    t bigint; \n"
+                + "    d bigint := 0; \n"
+                + "BEGIN \n"
+                + "    WHILE s > 0 LOOP \n"
+                + "        rx := CASE WHEN (x & s) > 0 THEN 1 ELSE 0 END; \n"
+                + "        ry := CASE WHEN (y & s) > 0 THEN 1 ELSE 0 END; \n"
+                + "        d := d + s * s * ((3 * rx) # ry); \n"
+                + "        IF ry = 0 THEN \n"
+                + "            IF rx = 1 THEN \n"
+                + "                x := " + (n - 1) + " - x; \n"
+                + "                y := " + (n - 1) + " - y; \n"
+                + "            END IF; \n"
+                + "            t := x; \n"
+                + "            x := y; \n"
+                + "            y := t; \n"
+                + "        END IF; \n"
+                + "        s := s / 2; \n"
+                + "    END LOOP; \n"
+                + "    RETURN d; \n"
+                + "END \n"
+                + "$$ LANGUAGE plpgsql IMMUTABLE STRICT PARALLEL SAFE";
+        stmt.execute(sql);
+        stmt.close();
+    }
+
+    /**
+     * @return the condition on the points of a cell, lat <= lat < lat + 1 and lng <= lon < lng + 1,
+     * the last cells also take the points on lat 90 and lon 360 like CellBuckets.cellOf
+     */
+    private static String cellCondition(int lat, int lng) {
+        return "(lat >= " + lat + " and lat " + (lat == 89 ? "<= 90" : "< " + (lat + 1)) + ") \n"
+                + "AND (lon >= " + lng + " and lon " + (lng == 359 ? "<= 360" : "< " + (lng + 1)) + ")";
+    }
+
+    private static void createTableAndInsert(Connection connection, int lat, int lng) throws Exception {
+
+        createTable(connection, lat, lng);
+
+        Statement stmt = connection.createStatement();
 
         // insert data into the table
-        sql = "INSERT INTO icesat_partitions.\"t_" + lat + "_" + lng + "\" \n"
-                + "SELECT id, datetime_40, lat, lon, elev, track_id \n"
+        String sql = "INSERT INTO icesat_partitions.\"t_" + lat + "_" + lng + "\" (" + COLUMNS + ") \n"
+                + "SELECT " + COLUMNS + " \n"
                 + "FROM data_40hz \n"
-                + "WHERE (lat > " + lat + " and lat < " + (lat + 1) + ") \n"
-                + "AND (lon > " + lng + " and lon < " + (lng + 1) + ")";
+                + "WHERE " + cellCondition(lat, lng) + orderBy();
         stmt.execute(sql);
         
-        // create index on lat/lng/time
-        sql = "CREATE INDEX \"t_" + lat + "_" + lng + "_lat_lon_time_idx\" "
-                + "ON icesat_partitions.\"t_" + lat + "_" + lng + "\"(lat, lon, datetime_40)";
-        stmt.execute(sql);
+        createIndex(connection, lat, lng);
+
+    }
+
+    /**
+     * Count the points of data_40hz that createTableAndInsert would insert into each
+     * cell, in one scan.
+     *
+     * @return {lat, lng, points} of every cell that holds points, the largest first
+     */
+    public static List<long[]> cellHistogram(Connection connection) throws Exception {
+        return cellHistogram(connection, "true");
+    }
+
+    /**
+     * @return {lat, lng, points} of every cell that holds points of data_40hz matching
+     * the condition, the largest first
+     */
+    private static List<long[]> cellHistogram(Connection connection, String condition) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        String sql = "SELECT least(floor(lat), 89)::int, least(floor(lon), 359)::int, count(*) \n"
+                + "FROM data_40hz \n"
+                + "WHERE " + IN_RANGE + " \n"
+                + "AND (" + condition + ") \n"
+                + "GROUP BY 1, 2";
+        ResultSet rs = stmt.executeQuery(sql);
+        List<long[]> cells = new ArrayList<long[]>();
+        while (rs.next()) {
+            cells.add(new long[]{rs.getInt(1), rs.getInt(2), rs.getLong(3)});
+        }
+        rs.close();
+        stmt.close();
+
+        cells.sort((a, b) -> Long.compare(b[2], a[2]));
+        return cells;
+    }
+
+    /**
+     * Build the partition tables of the cells that hold points, on THREADS connections
+     * at the same time, the largest cell first so the last tables to finish are small.
+     * The tables left from a previous run in cells that are now empty are dropped.
+     */
+    public static void createTablesParallel(Connection connection) throws Exception {
+
+        checkNotNative(connection);
+
+        // the rows added after this one are appended by the next incremental run
+        long last_id = maxId(connection);
+
+        List<long[]> cells = cellHistogram(connection);
+        System.out.println("cells with points: " + cells.size());
+        dropTablesExcept(connection, cells);
+
+        List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+        for (long[] cell : cells) {
+            int lat = (int) cell[0];
+            int lng = (int) cell[1];
+            tasks.add(cell_connection -> {
+                System.out.println("lat=" + lat + ", lon=" + lng + ", points=" + cell[2]);
+                createTableAndInsert(cell_connection, lat, lng);
+            });
+        }
+        runParallel(connection, tasks);
+        saveLastId(connection, last_id);
+    }
+
+    /**
+     * Drop the tables left from a previous run in the cells that are not listed.
+     *
+     * @param cells {lat, lng, ...} of the cells whose tables are built
+     */
+    private static void dropTablesExcept(Connection connection, List<long[]> cells) throws Exception {
+        Set<String> names = new HashSet<String>();
+        for (long[] cell : cells) {
+            names.add("t_" + cell[0] + "_" + cell[1]);
+        }
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT tablename FROM pg_tables \n"
+                + "WHERE schemaname = 'icesat_partitions' AND tablename ~ '^t_-?[0-9]+_[0-9]+$'");
+        List<String> stale = new ArrayList<String>();
+        while (rs.next()) {
+            if (!names.contains(rs.getString(1))) {
+                stale.add(rs.getString(1));
+            }
+        }
+        rs.close();
+        for (String name : stale) {
+            stmt.execute("DROP TABLE IF EXISTS icesat_partitions.\"" + name + "\" CASCADE");
+        }
+        stmt.close();
+    }
+
+    /**
+     * @return the largest id of data_40hz, 0 if it is empty
+     */
+    private static long maxId(Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT coalesce(max(id), 0) FROM data_40hz");
+        rs.next();
+        long max_id = rs.getLong(1);
+        rs.close();
+        stmt.close();
+        return max_id;
+    }
+
+    /**
+     * Create the table of the high-water mark, with the oid of the data_40hz it was taken
+     * from, as a reload of data_40hz with LoadIcesatDB load.bulk=true swaps in a new
+     * table whose ids all come after the mark.
+     */
+    private static void createState(Statement stmt) throws Exception {
+        stmt.execute("CREATE TABLE IF NOT EXISTS icesat_partitions.partition_state (last_id bigint NOT NULL, table_oid oid NOT NULL)");
+    }
+
+    /**
+     * @return the largest id of data_40hz already in the partition tables, -1 if they
+     * were never built
+     * @throws SQLException if data_40hz was replaced since they were built
+     */
+    private static long lastId(Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        createState(stmt);
+        ResultSet rs = stmt.executeQuery("SELECT last_id, table_oid = 'data_40hz'::regclass::oid \n"
+                + "FROM icesat_partitions.partition_state");
+        long last_id = -1;
+        if (rs.next()) {
+            last_id = rs.getLong(1);
+            if (!rs.getBoolean(2)) {
+                rs.close();
+                stmt.close();
+                throw new SQLException("data_40hz was replaced since the partition tables were built, build them again");
+            }
+        }
+        rs.close();
+        stmt.close();
+        return last_id;
+    }
+
+    /**
+     * Record the largest id of data_40hz in the partition tables.
+     */
+    private static void saveLastId(Connection connection, long last_id) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        createState(stmt);
+        connection.setAutoCommit(false);
+        try {
+            stmt.execute("DELETE FROM icesat_partitions.partition_state");
+            stmt.execute("INSERT INTO icesat_partitions.partition_state VALUES (" + last_id + ", 'data_40hz'::regclass::oid)");
+            connection.commit();
+        } catch (Exception ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+            stmt.close();
+        }
+    }
+
+    /**
+     * Append the rows added to data_40hz since the last build to the partition tables of
+     * their cells, instead of rebuilding every table. Only the cells that received rows
+     * are touched, a cell without a table gets one. The new tracks of each table are
+     * added to icesat_partitions.track_tables.
+     * A row already in its table is skipped, so a run that failed can simply be rerun.
+     */
+    public static void appendIncremental(Connection connection) throws Exception {
+
+        checkNotNative(connection);
+
+        long last_id = lastId(connection);
+        if (last_id < 0) {
+            throw new SQLException("icesat_partitions.partition_state is empty, build the partition tables first");
+        }
+        long max_id = maxId(connection);
+        if (max_id <= last_id) {
+            System.out.println("no rows added since id " + last_id);
+            return;
+        }
+        String added = "data_40hz.id > " + last_id + " and data_40hz.id <= " + max_id;
+
+        List<long[]> cells = cellHistogram(connection, added);
+        System.out.println("rows " + added + ", cells: " + cells.size());
+
+        Set<String> tables = PartitionTrackMap.getTables(connection);
+
+        List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+        for (long[] cell : cells) {
+            int lat = (int) cell[0];
+            int lng = (int) cell[1];
+            String name = "t_" + lat + "_" + lng;
+            String table = "icesat_partitions.\"" + name + "\"";
+            tasks.add(cell_connection -> {
+                System.out.println("lat=" + lat + ", lon=" + lng + ", points=" + cell[2]);
+
+                if (!tables.contains(name)) {
+                    createTable(cell_connection, lat, lng);
+                    createIndex(cell_connection, lat, lng);
+                }
+
+                String where = "WHERE (" + added + ") \n"
+                        + "AND " + cellCondition(lat, lng);
+
+                // insert data into the table
+                Statement cell_stmt = cell_connection.createStatement();
+                String sql = "INSERT INTO " + table + " (" + COLUMNS + ") \n"
+                        + "SELECT " + COLUMNS + " \n"
+                        + "FROM data_40hz \n"
+                        + where + orderBy() + " \nON CONFLICT (id) DO NOTHING";
+                cell_stmt.execute(sql);
+                cell_stmt.close();
+
+                PartitionTrackMap.saveNew(table, where, cell_connection);
+            });
+        }
+        runParallel(connection, tasks);
+        saveLastId(connection, max_id);
+    }
+
+    /**
+     * Run the tasks in order on THREADS connections at the same time, the given
+     * connection being one of them.
+     */
+    static void runParallel(Connection connection, List<PartitionTask> tasks) throws Exception {
+
+        // each worker takes a connection of the pool for one task at a time
+        int threads = Math.max(1, Math.min(THREADS, tasks.size()));
+        BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(threads);
+        List<Connection> opened = new ArrayList<Connection>();
+        connections.add(connection);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 1; i < threads; i++) {
+                Connection opened_connection = openConnection();
+                opened.add(opened_connection);
+                connections.add(opened_connection);
+            }
+
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (PartitionTask task : tasks) {
+                results.add(pool.submit(() -> {
+                    Connection task_connection = connections.take();
+                    try {
+                        task.run(task_connection);
+                        return null;
+                    } finally {
+                        connections.add(task_connection);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Connection opened_connection : opened) {
+                opened_connection.close();
+            }
+        }
+    }
+
+    /**
+     * Count the points of data_40hz in each bin of 1/BINS_PER_DEGREE by 1/BINS_PER_DEGREE
+     * degree, in one scan. The points on lat 90 or lon 360 are counted in the last bin.
+     *
+     * @return points of bin (lat, lon) at [lat * LON_BINS + lon], from lat -90 and lon 0
+     */
+    private static long[] binHistogram(Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        String sql = "SELECT " + LAT_BIN + "::int, " + LON_BIN + "::int, count(*) \n"
+                + "FROM data_40hz \n"
+                + "WHERE " + IN_RANGE + " \n"
+                + "GROUP BY 1, 2";
+        ResultSet rs = stmt.executeQuery(sql);
+        long[] bins = new long[LAT_BINS * LON_BINS];
+        while (rs.next()) {
+            bins[rs.getInt(1) * LON_BINS + rs.getInt(2)] = rs.getLong(3);
+        }
+        rs.close();
+        stmt.close();
+        return bins;
+    }
+
+    /**
+     * Add the tile of size by size bins from bin (lat_bin, lon_bin) to the tiles, or its
+     * quadrants if it holds more than TILE_POINTS points. Empty tiles are left out.
+     * The quadrants are named after their tile, followed by 0 for the south west one,
+     * 1 south east, 2 north west and 3 north east.
+     */
+    private static void addTile(long[] bins, int lat_bin, int lon_bin, int size, String name, List<Tile> tiles) {
+
+        long points = 0;
+        for (int i = lat_bin; i < lat_bin + size; i++) {
+            for (int j = lon_bin; j < lon_bin + size; j++) {
+                points += bins[i * LON_BINS + j];
+            }
+        }
+        if (points == 0) {
+            return;
+        }
+
+        if (points > TILE_POINTS && size > 1) {
+            int half = size / 2;
+            String prefix = size == ROOT_DEGREES * BINS_PER_DEGREE ? name + "_" : name;
+            addTile(bins, lat_bin, lon_bin, half, prefix + "0", tiles);
+            addTile(bins, lat_bin, lon_bin + half, half, prefix + "1", tiles);
+            addTile(bins, lat_bin + half, lon_bin, half, prefix + "2", tiles);
+            addTile(bins, lat_bin + half, lon_bin + half, half, prefix + "3", tiles);
+            return;
+        }
+
+        tiles.add(new Tile(name, lat_bin, lon_bin, size, points));
+    }
+
+    /**
+     * Split data_40hz into tiles of balanced sizes instead of the fixed 1 by 1 degree
+     * tables. The globe is covered by ROOT_DEGREES by ROOT_DEGREES degree root tiles,
+     * each kept whole while it holds at most TILE_POINTS points and split into its
+     * quadrants otherwise, down to 1/BINS_PER_DEGREE degree, so sparse regions share a
+     * few tables and dense ones are spread over many small ones.
+     * The tiles are recorded in icesat_partitions.tiles, their tables are named
+     * q_<lat>_<lon>_<quadrants> after their root tile and quadrants.
+     * A tile takes the points of its bins, by the bin expressions of the histogram, so
+     * each point is in exactly one tile and the tiles hold the points they were sized by.
+     */
+    public static void createTilesAdaptive(Connection connection) throws Exception {
+
+        checkNotNative(connection);
+
+        List<Tile> tiles = new ArrayList<Tile>();
+        long[] bins = binHistogram(connection);
+        for (int lat = -90; lat < 90; lat = lat + ROOT_DEGREES) {
+            for (int lng = 0; lng < 360; lng = lng + ROOT_DEGREES) {
+                addTile(bins, (lat + 90) * BINS_PER_DEGREE, lng * BINS_PER_DEGREE,
+                        ROOT_DEGREES * BINS_PER_DEGREE, "q_" + lat + "_" + lng, tiles);
+            }
+        }
+        tiles.sort((a, b) -> Long.compare(b.points, a.points));
+        System.out.println("tiles: " + tiles.size());
+
+        // drop the tiles of the previous run
+        Statement stmt = connection.createStatement();
+        for (String tableName : tileTables(connection)) {
+            stmt.execute("DROP TABLE IF EXISTS " + tableName + " CASCADE");
+        }
+        stmt.execute("DROP TABLE IF EXISTS icesat_partitions.tiles");
+
+        List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+        for (Tile tile : tiles) {
+            tasks.add(tile_connection -> {
+                System.out.println(tile.name + ", points=" + tile.points);
+                createTable(tile_connection, tile.name);
+
+                // insert data into the table, the lat/lon range narrows the rows before their bins are computed
+                Statement tile_stmt = tile_connection.createStatement();
+                String sql = "INSERT INTO icesat_partitions.\"" + tile.name + "\" (" + COLUMNS + ") \n"
+                        + "SELECT " + COLUMNS + " \n"
+                        + "FROM data_40hz \n"
+                        + "WHERE " + IN_RANGE + " \n"
+                        + "AND (lat >= " + tile.lat_min + " and lat <= " + tile.lat_max + ") \n"
+                        + "AND (lon >= " + tile.lon_min + " and lon <= " + tile.lon_max + ") \n"
+                        + "AND (" + LAT_BIN + " >= " + tile.lat_bin + " and " + LAT_BIN + " < " + (tile.lat_bin + tile.size) + ") \n"
+                        + "AND (" + LON_BIN + " >= " + tile.lon_bin + " and " + LON_BIN + " < " + (tile.lon_bin + tile.size) + ")" + orderBy();
+                tile_stmt.execute(sql);
+                tile_stmt.close();
+
+                createIndex(tile_connection, tile.name);
+            });
+        }
+        runParallel(connection, tasks);
+
+        // record the tiles once all their tables are built
+        stmt.execute("CREATE TABLE icesat_partitions.tiles (\n"
+                + "    table_name text PRIMARY KEY,\n"
+                + "    lat_min double precision,\n"
+                + "    lat_max double precision,\n"
+                + "    lon_min double precision,\n"
+                + "    lon_max double precision,\n"
+                + "    points bigint\n"
+                + ")");
+        stmt.close();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO icesat_partitions.tiles VALUES (?, ?, ?, ?, ?, ?)");
+        for (Tile tile : tiles) {
+            insert.setString(1, tile.name);
+            insert.setDouble(2, tile.lat_min);
+            insert.setDouble(3, tile.lat_max);
+            insert.setDouble(4, tile.lon_min);
+            insert.setDouble(5, tile.lon_max);
+            insert.setLong(6, tile.points);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+        insert.close();
+    }
+
+    /**
+     * @return the tables of icesat_partitions.tiles, ex. icesat_partitions."q_36_240_03",
+     * none if the adaptive tiles were not built
+     */
+    public static List<String> tileTables(Connection connection) throws Exception {
+
+        List<String> tableNames = new ArrayList<String>();
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT to_regclass('icesat_partitions.tiles') IS NOT NULL");
+        rs.next();
+        boolean built = rs.getBoolean(1);
+        rs.close();
+        if (built) {
+            rs = stmt.executeQuery("SELECT table_name FROM icesat_partitions.tiles");
+            while (rs.next()) {
+                tableNames.add("icesat_partitions.\"" + rs.getString(1) + "\"");
+            }
+            rs.close();
+        }
+        stmt.close();
+        return tableNames;
+    }
+
+    /**
+     * @return the tables of icesat_partitions.tiles that hold the points of a lat/lon box
+     */
+    public static List<String> tileTables(Connection connection,
+            double lat_min, double lat_max, double lon_min, double lon_max) throws Exception {
+
+        List<String> tableNames = new ArrayList<String>();
+        PreparedStatement stmt = connection.prepareStatement("SELECT table_name FROM icesat_partitions.tiles \n"
+                + "WHERE lat_min <= ? AND lat_max >= ? AND lon_min <= ? AND lon_max >= ?");
+        stmt.setDouble(1, lat_max);
+        stmt.setDouble(2, lat_min);
+        stmt.setDouble(3, lon_max);
+        stmt.setDouble(4, lon_min);
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            tableNames.add("icesat_partitions.\"" + rs.getString(1) + "\"");
+        }
+        rs.close();
+        stmt.close();
+        return tableNames;
+    }
+
+    /**
+     * Build every partition table from one read of data_40hz. The rows are streamed
+     * out of data_40hz by COPY TO and appended to the file of their cell by
+     * jnative.CellBuckets, then the table of each cell with a file is created, filled
+     * from its cell file by COPY and indexed once it holds all its rows, on THREADS
+     * connections at the same time, the largest cell first.
+     * A point belongs to the cell of CellBuckets.cellOf, the same cell as in
+     * createTableAndInsert.
+     */
+    public static void buildSinglePass(Connection connection, File cell_dir_obj) throws Exception {
+
+        checkNotNative(connection);
+
+        // the rows added after this one are appended by the next incremental run
+        long last_id = maxId(connection);
+
+        CopyManager cm = new CopyManager((BaseConnection) connection);
+
+        // read data_40hz once, consecutive rows of the same cell are appended together
+        CellBuckets buckets = new CellBuckets(cell_dir_obj, false);
+        try {
+            CopyOut copy = cm.copyOut("COPY (SELECT " + COLUMNS + " FROM data_40hz WHERE " + IN_RANGE + ") TO STDOUT WITH CSV");
+            ByteBuffer rows = ByteBuffer.allocate(1 << 20);
+            int rows_cell = -1;
+            long count = 0;
+            byte[] row;
+            while ((row = copy.readFromCopy()) != null) {
+                int cell = cellOf(row);
+                if (cell < 0) {
+                    continue;
+                }
+                if (rows.position() > 0 && (cell != rows_cell || rows.remaining() < row.length)) {
+                    rows.flip();
+                    buckets.append(rows_cell, rows);
+                    rows.clear();
+                }
+                rows_cell = cell;
+                if (row.length > rows.capacity()) {
+                    buckets.append(cell, ByteBuffer.wrap(row));
+                } else {
+                    rows.put(row);
+                }
+
+                if (++count % 10000000 == 0) {
+                    System.out.println("rows read: " + count);
+                }
+            }
+            if (rows.position() > 0) {
+                rows.flip();
+                buckets.append(rows_cell, rows);
+            }
+            System.out.println("rows read: " + count);
+        } finally {
+            buckets.close();
+        }
+
+        // only the cells with a cell file get a table, the largest first
+        List<long[]> cells = new ArrayList<long[]>();
+        for (int cell = 0; cell < CellBuckets.CELLS; cell++) {
+            File cell_file = buckets.fileOf(cell);
+            if (cell_file.exists()) {
+                cells.add(new long[]{CellBuckets.latOf(cell), CellBuckets.lonOf(cell), cell_file.length()});
+            }
+        }
+        cells.sort((a, b) -> Long.compare(b[2], a[2]));
+        System.out.println("cells with points: " + cells.size());
+        dropTablesExcept(connection, cells);
+
+        List<PartitionTask> tasks = new ArrayList<PartitionTask>();
+        for (long[] cell : cells) {
+            int lat = (int) cell[0];
+            int lng = (int) cell[1];
+            File cell_file = buckets.fileOf(CellBuckets.cellOf(lat, lng));
+            tasks.add(cell_connection -> {
+                System.out.println("lat=" + lat + ", lon=" + lng + ", bytes=" + cell[2]);
 
+                createTable(cell_connection, lat, lng);
+
+                // insert data into the table, through cell_rows to sort them
+                Statement stmt = cell_connection.createStatement();
+                if (HILBERT) {
+                    stmt.execute("CREATE TEMP TABLE IF NOT EXISTS cell_rows AS SELECT " + COLUMNS + " FROM data_40hz WITH NO DATA");
+                }
+                String table = "icesat_partitions.\"t_" + lat + "_" + lng + "\"";
+                FileInputStream in = new FileInputStream(cell_file);
+                try {
+                    new CopyManager((BaseConnection) cell_connection).copyIn(
+                            "COPY " + (HILBERT ? "cell_rows" : table) + " (" + COLUMNS + ") FROM STDIN WITH CSV", in, 1 << 20);
+                } finally {
+                    in.close();
+                }
+                if (HILBERT) {
+                    stmt.execute("INSERT INTO " + table + " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM cell_rows" + orderBy());
+                    stmt.execute("TRUNCATE cell_rows");
+                }
+                stmt.close();
+                cell_file.delete();
+
+                createIndex(cell_connection, lat, lng);
+            });
+        }
+        runParallel(connection, tasks);
+        saveLastId(connection, last_id);
+    }
+
+    /**
+     * @return the cell of a CSV row of COLUMNS, or -1 if its lat or lon is NULL
+     */
+    private static int cellOf(byte[] row) {
+        int lat_start = 0;
+        for (int field = 0; field < 2; field++) {
+            while (row[lat_start] != ',') {
+                lat_start++;
+            }
+            lat_start++;
+        }
+        int lon_start = lat_start;
+        while (row[lon_start] != ',') {
+            lon_start++;
+        }
+        lon_start++;
+        int lon_end = lon_start;
+        while (row[lon_end] != ',') {
+            lon_end++;
+        }
+
+        if (lon_start - lat_start == 1 || lon_end == lon_start) {
+            return -1;
+        }
+        double lat = Double.parseDouble(new String(row, lat_start, lon_start - 1 - lat_start, StandardCharsets.US_ASCII));
+        double lon = Double.parseDouble(new String(row, lon_start, lon_end - lon_start, StandardCharsets.US_ASCII));
+        return CellBuckets.cellOf(lat, lon);
+    }
+
+    /**
+     * @return true if data_40hz is a natively partitioned table, its partitions are then
+     * the icesat_partitions."t_<lat>_<lng>" tables built by createNative
+     */
+    private static boolean isNative(Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT 1 FROM pg_class WHERE oid = to_regclass('data_40hz') AND relkind = 'p'");
+        boolean partitioned = rs.next();
+        rs.close();
+        stmt.close();
+        return partitioned;
+    }
+
+    /**
+     * Refuse to build partition tables when data_40hz is natively partitioned, dropping
+     * and creating its partitions would delete the rows of data_40hz.
+     */
+    private static void checkNotNative(Connection connection) throws Exception {
+        if (isNative(connection)) {
+            throw new SQLException("data_40hz is natively partitioned, its partitions are the icesat_partitions tables");
+        }
+    }
+
+    /**
+     * Recreate data_40hz as a table partitioned by range of lat, then by range of lon,
+     * with one partition icesat_partitions."t_<lat>_<lng>" per cell under a partition
+     * icesat_partitions."b_<lat>" per latitude band. The rows of the current data_40hz,
+     * renamed data_40hz_unpartitioned, are copied over, each to its partition, and
+     * data_40hz_unpartitioned is dropped in the transaction of the copy, so it only
+     * exists while the copy is not done.
+     * The partitions replace the tables of the same names built by createTableAndInsert.
+     * A partitioned table cannot enforce a primary key on id alone, id keeps its sequence.
+     * The 64,800 partitions take too many locks for one transaction, so each step is
+     * committed on its own and a run that failed resumes from the first step not done.
+     */
+    public static void createNative(Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+
+        // keep the current table, its rows are copied into the partitions
+        if (!isNative(connection)) {
+            if (exists(stmt, "data_40hz_unpartitioned")) {
+                stmt.close();
+                throw new SQLException("data_40hz_unpartitioned already exists, drop or rename it before partitioning data_40hz");
+            }
+            inTransaction(connection, () -> {
+                stmt.execute("ALTER TABLE data_40hz RENAME TO data_40hz_unpartitioned");
+                stmt.execute("CREATE TABLE data_40hz (LIKE data_40hz_unpartitioned INCLUDING DEFAULTS) PARTITION BY RANGE (lat)");
+            });
+        }
+
+        // the partitions already attached by a previous run
+        Set<String> attached = new HashSet<String>();
+        ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_class c \n"
+                + "JOIN pg_namespace n ON n.oid = c.relnamespace \n"
+                + "WHERE n.nspname = 'icesat_partitions' AND c.relispartition");
+        while (rs.next()) {
+            attached.add(rs.getString(1));
+        }
+        rs.close();
+
+        for (int lat = -90; lat < 90; lat = lat + 1) {
+            int band_lat = lat;
+            String band = "icesat_partitions.\"b_" + lat + "\"";
+            inTransaction(connection, () -> {
+                if (!attached.contains("b_" + band_lat)) {
+                    stmt.execute("CREATE TABLE " + band + " PARTITION OF data_40hz \n"
+                            + "FOR VALUES FROM (" + (band_lat == -90 ? "MINVALUE" : String.valueOf(band_lat)) + ") "
+                            + "TO (" + (band_lat == 89 ? "MAXVALUE" : String.valueOf(band_lat + 1)) + ") \n"
+                            + "PARTITION BY RANGE (lon)");
+                }
+
+                for (int lng = 0; lng < 360; lng = lng + 1) {
+                    if (attached.contains("t_" + band_lat + "_" + lng)) {
+                        continue;
+                    }
+                    System.out.println("lat=" + band_lat + ", lon=" + lng);
+
+                    // drop the table if exists
+                    stmt.execute("DROP TABLE IF EXISTS icesat_partitions.\"t_" + band_lat + "_" + lng + "\" CASCADE");
+
+                    stmt.execute("CREATE TABLE icesat_partitions.\"t_" + band_lat + "_" + lng + "\" PARTITION OF " + band + " \n"
+                            + "FOR VALUES FROM (" + (lng == 0 ? "MINVALUE" : String.valueOf(lng)) + ") "
+                            + "TO (" + (lng == 359 ? "MAXVALUE" : String.valueOf(lng + 1)) + ")");
+                }
+            });
+        }
+
+        // copy the rows, each one is routed to its partition, unless a previous run did
+        if (exists(stmt, "data_40hz_unpartitioned")) {
+            inTransaction(connection, () -> {
+                // the sequence of id would be dropped with data_40hz_unpartitioned
+                ResultSet seq_rs = stmt.executeQuery("SELECT s.oid::regclass::text, a.attname FROM pg_depend d \n"
+                        + "JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S' \n"
+                        + "JOIN pg_attribute a ON a.attrelid = d.refobjid AND a.attnum = d.refobjsubid \n"
+                        + "WHERE d.refobjid = 'data_40hz_unpartitioned'::regclass AND d.deptype = 'a'");
+                List<String> sqls = new ArrayList<String>();
+                while (seq_rs.next()) {
+                    sqls.add("ALTER SEQUENCE " + seq_rs.getString(1) + " OWNED BY data_40hz.\"" + seq_rs.getString(2) + "\"");
+                }
+                seq_rs.close();
+                for (String sql : sqls) {
+                    stmt.execute(sql);
+                }
+
+                System.out.println("Copying data_40hz_unpartitioned into data_40hz");
+                stmt.execute("INSERT INTO data_40hz SELECT * FROM data_40hz_unpartitioned" + orderBy());
+                stmt.execute("DROP TABLE data_40hz_unpartitioned");
+            });
+        }
+
+        // create index on lat/lng/time, for every partition
+        stmt.execute("CREATE INDEX IF NOT EXISTS data_40hz_lat_lon_time_idx ON data_40hz" + indexMethod() + "(lat, lon, datetime_40)" + indexOptions());
+        stmt.execute("ANALYZE data_40hz");
+        stmt.close();
+    }
+
+    /**
+     * @return true if a table of the name exists on the search path
+     */
+    private static boolean exists(Statement stmt, String name) throws SQLException {
+        ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + name + "') IS NOT NULL");
+        rs.next();
+        boolean exists = rs.getBoolean(1);
+        rs.close();
+        return exists;
+    }
+
+    /**
+     * Statements run in one transaction by inTransaction.
+     */
+    private interface TransactionTask {
+        void run() throws Exception;
+    }
+
+    private static void inTransaction(Connection connection, TransactionTask task) throws Exception {
+        connection.setAutoCommit(false);
+        try {
+            task.run();
+            connection.commit();
+        } catch (Exception ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private static Connection openConnection() throws Exception {
+        return DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
     }
 
     public static void main(String[] args) throws Exception {
 
         Class.forName("org.postgresql.Driver");
-        Connection connection = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
+        Connection connection = openConnection();
 
         try {
-            for (int lat = -90; lat < 90; lat = lat + 1) {
-                for (int lon = 0; lon < 360; lon = lon + 1) {
-                    System.out.println("-------------------------");
-                    System.out.println("lat="+lat+", lon="+lon);
-                    createTableAndInsert(connection, lat, lon);
-                }
+            if (HILBERT) {
+                createHilbertKey(connection);
+            }
+            if (args.length > 0 && args[0].equals("native")) {
+                createNative(connection);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("adaptive")) {
+                createTilesAdaptive(connection);
+                return;
             }
+            if (args.length > 0 && args[0].equals("incremental")) {
+                appendIncremental(connection);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("single")) {
+                buildSinglePass(connection, new File(CELL_DIR));
+                return;
+            }
+
+            createTablesParallel(connection);
         } finally {
             connection.close();
         }
@@ -0,0 +1,156 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: In-process dictionary of the granule links of “hdf5_file”, for the query and export code that returns the original NSIDC HDF5 link of a point. The partition tables only store the “fileid” of each point, the link is resolved here.
+All the links are read once, into a few primitive arrays, up to “link_dictionary.max_bytes” bytes of links. The links that do not fit are read from “hdf5_file” when asked for.
+@project_url: www.openaltimetry.org
+
+*/
+
+
+package org.openaltimetry.icesat.db.util;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+public class LinkDictionary {
+
+    // Largest size of the links held in memory
+    private static final long MAX_BYTES = Long.parseLong(System.getProperty("link_dictionary.max_bytes", "67108864"));
+
+    private final Connection connection;
+
+    // fileids held in memory, in ascending order
+    private int[] fileids = new int[1024];
+
+    // link of fileids[i] is data[offsets[i]] to data[offsets[i + 1]]
+    private int[] offsets = new int[1025];
+    private byte[] data = new byte[1 << 16];
+
+    private int count = 0;
+
+    // false if some links did not fit in MAX_BYTES
+    private boolean complete = true;
+
+    // reads the links that did not fit
+    private PreparedStatement select_link;
+
+    /**
+     * Read the links of hdf5_file. The connection is kept to read the links that do
+     * not fit in memory.
+     */
+    public LinkDictionary(Connection connection) throws SQLException {
+        this.connection = connection;
+
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT fileid, link FROM hdf5_file WHERE link IS NOT NULL ORDER BY fileid");
+        while (rs.next()) {
+            byte[] link = rs.getString(2).getBytes(StandardCharsets.UTF_8);
+            int offset = offsets[count];
+            if (offset + link.length > MAX_BYTES) {
+                complete = false;
+                break;
+            }
+
+            if (count == fileids.length) {
+                fileids = Arrays.copyOf(fileids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2 + 1);
+            }
+            if (offset + link.length > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(MAX_BYTES, Math.max((long) data.length * 2, offset + link.length)));
+            }
+            fileids[count] = rs.getInt(1);
+            System.arraycopy(link, 0, data, offset, link.length);
+            offsets[count + 1] = offset + link.length;
+            count++;
+        }
+        rs.close();
+        stmt.close();
+    }
+
+    /**
+     * @return the link of the granule, null if it has none
+     */
+    public String get(int fileid) throws SQLException {
+        int i = Arrays.binarySearch(fileids, 0, count, fileid);
+        if (i >= 0) {
+            return new String(data, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+        }
+        if (complete) {
+            return null;
+        }
+        return select(fileid);
+    }
+
+    private synchronized String select(int fileid) throws SQLException {
+        if (select_link == null) {
+            select_link = connection.prepareStatement("SELECT link FROM hdf5_file WHERE fileid = ?");
+        }
+        select_link.setInt(1, fileid);
+        ResultSet rs = select_link.executeQuery();
+        String link = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return link;
+    }
+
+    /**
+     * @return number of links held in memory
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes of links held in memory
+     */
+    public long bytes() {
+        return offsets[count];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Class.forName("org.postgresql.Driver");
+        Connection connection = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
+        try {
+            LinkDictionary links = new LinkDictionary(connection);
+            System.out.println("links: " + links.size() + ", bytes: " + links.bytes());
+            for (String arg : args) {
+                System.out.println(arg + "," + links.get(Integer.parseInt(arg)));
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+}
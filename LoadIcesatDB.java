@@ -30,18 +30,61 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 @author: Minh Phan (mnphan@ucsd.edu)
 @date: July 24th 2017
 @desc:  Program loads the ICESat data file in CSV format (generated from HDF5.java) into the postgres database table.
+With load.mode=stream it runs the HDF5.java extraction itself and streams the rows into the tables without CSV files.
+The streamed rows come from no file the load ledger could record, so load.ledger=true is refused in stream mode; a
+stream load that failed is run again with load.bulk=true.
+With load.mode=cells it also loads the cell files of HDF5.java -Dhdf5.output=cells straight into the partition tables.
+With load.bulk=true DATA_40HZ and DATA_1HZ are replaced: the rows are loaded into unlogged staging tables without
+indexes, which get the indexes and constraints afterwards and are swapped in (see StagingTable.java).
+Each file is loaded in its own transaction and recorded in the load ledger, so a rerun skips the files already
+loaded (see LoadLedger.java). A day file that HDF5.java rewrote because the day gained or changed granules
+replaces the rows of the granules the extraction manifest lists for that day. table_fileId.csv, rewritten with every granule by each extraction, is not in the
+ledger: only its granules missing from HDF5_FILE are added.
 @project_url: www.openaltimetry.org
 */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+import jnative.BinaryRowWriter;
+import jnative.ExtractionOutput;
+import jnative.GranuleManifest;
+import jnative.HDF5;
+import org.openaltimetry.icesat.db.util.ICESATDBPartition;
+import org.postgresql.copy.CopyIn;
 import org.postgresql.copy.CopyManager;
 import org.postgresql.core.BaseConnection;
 
@@ -56,6 +99,59 @@ public class LoadIcesatDB {
     // Data dir that store CSV files to be loaded to database
     static public final String DATA_DIR = Property.getProperty("data_dir");
 
+    // Load mode: "csv" loads the CSV files of DATA_DIR, "stream" extracts the
+    // HDF5 files of HDF5_DIR and streams the rows to the database without CSV files,
+    // "cells" loads the CSV files and the cell files of DATA_DIR/cells into the partition tables
+    static public final String LOAD_MODE = getProperty("load.mode", "csv");
+
+    // Stream mode: HDF5 data dir, with one sub directory per day
+    static public final String HDF5_DIR = getProperty("hdf5.dir", DATA_DIR);
+
+    // Stream mode: number of day directories extracted at the same time
+    static public final int HDF5_THREADS = Integer.parseInt(getProperty("hdf5.threads", "1"));
+
+    // CSV mode: number of files loaded at the same time, each on its own connection
+    static public final int LOAD_THREADS = Integer.parseInt(getProperty("load.threads", "1"));
+
+    // Size of the blocks files are read and sent to COPY in
+    static public final int LOAD_BUFFER_SIZE = Integer.parseInt(getProperty("load.buffer_size", String.valueOf(1 << 20)));
+
+    // Number of decompressed blocks of a .gz file read ahead of the COPY
+    static public final int GZIP_BLOCKS = Integer.parseInt(getProperty("load.gzip_blocks", "4"));
+
+    // Stream mode: number of 1MB buffers each table may queue ahead of the database
+    static public final int STREAM_CHUNKS = Integer.parseInt(getProperty("load.stream_chunks", "16"));
+
+    // Stream mode: send the 40hz and 1hz rows in PostgreSQL binary COPY format instead of CSV.
+    // In csv mode, table_40hz_*.bin and table_1hz_*.bin files written by HDF5.java
+    // with -Dhdf5.format=binary are always loaded in binary format.
+    static public final boolean BINARY = getProperty("hdf5.format", "csv").equals("binary");
+
+    // Bulk load: replace DATA_40HZ and DATA_1HZ through unlogged staging tables
+    static public final boolean BULK_LOAD = getProperty("load.bulk", "false").equals("true");
+
+    // Skip the files of the load ledger and record the loaded ones, see LoadLedger.java;
+    // off by default in stream mode, which loads no files
+    static public final boolean LEDGER = getProperty("load.ledger", LOAD_MODE.equals("stream") ? "false" : "true").equals("true");
+
+    // Tables the 40hz and 1hz rows are copied into
+    static public final String TABLE_40HZ = BULK_LOAD ? "DATA_40HZ" + StagingTable.SUFFIX : "DATA_40HZ";
+    static public final String TABLE_1HZ = BULK_LOAD ? "DATA_1HZ" + StagingTable.SUFFIX : "DATA_1HZ";
+
+    // COPY statements of each table
+    static public final String SQL_FILEID_NEW = "COPY HDF5_FILE_NEW FROM STDIN WITH DELIMITER AS ',' CSV";
+    static public final String SQL_40HZ = "COPY " + TABLE_40HZ + " (FILEID, EPOCH_2000_40, DATETIME_40, LAT, LON, ELEV, TIME_IDX, TRACK_ID) FROM STDIN WITH DELIMITER AS ',' CSV";
+    static public final String SQL_1HZ = "COPY " + TABLE_1HZ + " (FILEID, EPOCH_2000_1, DATETIME_1, TRACK_ID, TIME_IDX) FROM STDIN WITH DELIMITER AS ',' CSV";
+    static public final String SQL_40HZ_BINARY = "COPY " + TABLE_40HZ + " (FILEID, EPOCH_2000_40, DATETIME_40, LAT, LON, ELEV, TIME_IDX, TRACK_ID) FROM STDIN WITH (FORMAT binary)";
+    static public final String SQL_1HZ_BINARY = "COPY " + TABLE_1HZ + " (FILEID, EPOCH_2000_1, DATETIME_1, TRACK_ID, TIME_IDX) FROM STDIN WITH (FORMAT binary)";
+    static public final String SQL_CELL = "COPY icesat_partitions.\"t_%d_%d\" (ID, DATETIME_40, LAT, LON, ELEV, TRACK_ID, FILEID) FROM STDIN WITH %s";
+
+    // Day files: table_40hz_<ymd>.csv or table_1hz_<ymd>.csv, .bin, with .gz when compressed
+    static public final Pattern DAY_FILE = Pattern.compile("table_(40hz|1hz)_(.+)\\.(csv|bin)(\\.gz)?");
+
+    // Cell files: cell_<lat>_<lon>.csv or .bin
+    static public final Pattern CELL_FILE = Pattern.compile("cell_(-?\\d+)_(\\d+)\\.(csv|bin)");
+
     // Variable to count table_40hz
     static public long count_table_40hz = 0;
 
@@ -70,6 +166,10 @@ public class LoadIcesatDB {
 
     // Variable to count number of file_1Hz
     static public long count_file_1hz = 0;
+
+    // Variable to count cell files and rows loaded into the partition tables
+    static public long count_file_cells = 0;
+    static public long count_table_cells = 0;
     
     @SuppressWarnings("ConvertToTryWithResources")
     public static void main(String[] args) {
@@ -77,6 +177,11 @@ public class LoadIcesatDB {
         System.out.println("Program started at: " + startTime.toString());
         
         try {
+            if (LEDGER && LOAD_MODE.equals("stream")) {
+                System.out.println("load.ledger=true is not supported with load.mode=stream");
+                return;
+            }
+
             // Connect to Postgresql database            
             if (!postgresConnect()) {
                 System.out.println("Cannot connect to postgreSQL database");
@@ -84,62 +189,32 @@ public class LoadIcesatDB {
             }
             System.out.println("Connected to postgreSQL database");
 
-            String sql;
-            FileReader reader;
-
             try {
-                // Start loading process            
-                CopyManager cm = new CopyManager((BaseConnection) postgresConn);
-
-                // Get data dir object                
-                File data_dir_obj = new File(DATA_DIR);
-
-                if (!data_dir_obj.exists() || !data_dir_obj.isDirectory()) {
-                    System.out.println("Data dir does not exist: " + DATA_DIR);
-                    return;
+                if (LEDGER) {
+                    // Files recorded in the ledger are not loaded again
+                    LoadLedger.create(postgresConn);
                 }
 
-                // Load table_fileId.csv to table, this is just metadata table
-                sql = "COPY HDF5_FILE FROM STDIN WITH DELIMITER AS ',' CSV";
-                reader = new FileReader(new File(data_dir_obj, "table_fileId.csv"));
-                count_table_fileId = cm.copyIn(sql, reader);
-                reader.close();
-
-                // Get all csv files as File object
-                File[] csv_file_objs = data_dir_obj.listFiles();
-
-                // Scan for each CSV file
-                for (File csv_file_obj : csv_file_objs) {
-                    // Make sure it is a file
-                    if (csv_file_obj.isDirectory()) {
-                        continue;
-                    }
+                if (BULK_LOAD) {
+                    // Create the staging tables the rows are loaded into
+                    prepareBulkLoad();
+                }
 
-                    // Make sure it is a CSV extension
-                    String fileName = csv_file_obj.getName();
-                    if (!fileName.endsWith(".csv")) {
-                        continue;
-                    }
+                if (LOAD_MODE.equals("stream")) {
+                    // Extract HDF5 files and load the rows in one pass
+                    streamLoad();
+                } else if (LOAD_MODE.equals("cells")) {
+                    // Load the CSV files, then the partition tables from the cell files
+                    loadCsvFiles();
+                    loadCellFiles();
+                } else {
+                    // Load the CSV files generated by HDF5.java
+                    loadCsvFiles();
+                }
 
-                    // If it is a CSV file for table_1hz
-                    if (fileName.startsWith("table_1hz")) {
-                        count_file_1hz++;
-
-                        sql = "COPY DATA_1HZ (FILEID, EPOCH_2000_1, DATETIME_1, TRACK_ID, TIME_IDX) FROM STDIN WITH DELIMITER AS ',' CSV";
-                        reader = new FileReader(csv_file_obj);
-                        count_table_1hz += cm.copyIn(sql, reader);
-                        reader.close();
-                        System.out.println(count_file_1hz + "\n" + fileName);                        
-                    } // Else if it is a CSV file for table_40hz                    
-                    else if (fileName.startsWith("table_40hz")) {
-                        count_file_40hz++;
-
-                        sql = "COPY DATA_40HZ (FILEID, EPOCH_2000_40, DATETIME_40, LAT, LON, ELEV, TIME_IDX) FROM STDIN WITH DELIMITER AS ',' CSV";
-                        reader = new FileReader(csv_file_obj);
-                        count_table_40hz += cm.copyIn(sql, reader);
-                        reader.close();
-                        System.out.println(count_file_40hz + "\n" + fileName);                        
-                    }
+                if (BULK_LOAD) {
+                    // Index the staging tables and swap them in
+                    finishBulkLoad();
                 }
             } catch (SQLException ex) {
                 ex.printStackTrace();
@@ -154,6 +229,10 @@ public class LoadIcesatDB {
             System.out.println("count_table_40hz: " + count_table_40hz);
             System.out.println("count_table_1hz: " + count_table_1hz);
             System.out.println("count_table_fileId: " + count_table_fileId);
+            if (LOAD_MODE.equals("cells")) {
+                System.out.println("count_file_cells: " + count_file_cells);
+                System.out.println("count_table_cells: " + count_table_cells);
+            }
 
             /*
             count_file_40hz: 597
@@ -175,6 +254,602 @@ public class LoadIcesatDB {
                 
     }
 
+    /**
+     * Load table_fileId.csv, table_40hz_*.csv and table_1hz_*.csv of DATA_DIR,
+     * and table_40hz_*.bin and table_1hz_*.bin in binary format. The 40hz and
+     * 1hz files are loaded by LOAD_THREADS connections at the same time. When a
+     * day has files of a table in more than one format, only the newest is loaded.
+     *
+     * @throws Exception
+     */
+    public static void loadCsvFiles() throws Exception {
+        // Get data dir object                
+        File data_dir_obj = new File(DATA_DIR);
+
+        if (!data_dir_obj.exists() || !data_dir_obj.isDirectory()) {
+            System.out.println("Data dir does not exist: " + DATA_DIR);
+            return;
+        }
+
+        // Load table_fileId.csv to table, this is just metadata table
+        count_table_fileId = loadFileIds(postgresConn, new File(data_dir_obj, "table_fileId.csv"));
+
+        // Granules of each day, whose rows are replaced when a day file was rewritten;
+        // the format of the manifest is only checked by the extraction
+        File manifest_file = new File(data_dir_obj, HDF5.MANIFEST_FILE);
+        GranuleManifest manifest = LEDGER && manifest_file.exists() ? GranuleManifest.load(manifest_file, null) : null;
+
+        // Get the table_40hz and table_1hz files, one per table and day: an extraction
+        // in another format or compression leaves the files of the earlier one, the
+        // newest file of a day is the one written last
+        Map<String, File> day_files = new HashMap<>();
+        for (File csv_file_obj : data_dir_obj.listFiles()) {
+            Matcher matcher = DAY_FILE.matcher(csv_file_obj.getName());
+            if (!csv_file_obj.isFile() || !matcher.matches()) {
+                continue;
+            }
+            String day = matcher.group(1) + "_" + matcher.group(2);
+            File other = day_files.get(day);
+            if (other != null) {
+                File newer = csv_file_obj.lastModified() > other.lastModified() ? csv_file_obj : other;
+                File older = newer == other ? csv_file_obj : other;
+                System.out.println("Ignoring " + older.getName() + ", " + newer.getName() + " is newer");
+                csv_file_obj = newer;
+            }
+            day_files.put(day, csv_file_obj);
+        }
+
+        // Largest first so the connections finish together instead of waiting on one big file
+        List<File> csv_file_objs = new ArrayList<>(day_files.values());
+        csv_file_objs.sort(Comparator.comparingLong(File::length).reversed());
+
+        // Each worker takes a connection of the pool for one file at a time,
+        // a connection can run a single COPY at a time
+        BlockingQueue<Connection> connections = new ArrayBlockingQueue<>(LOAD_THREADS);
+        List<Connection> opened = new ArrayList<>();
+        connections.add(postgresConn);
+        ExecutorService pool = Executors.newFixedThreadPool(LOAD_THREADS);
+        try {
+            for (int i = 1; i < LOAD_THREADS; i++) {
+                Connection connection = openConnection();
+                opened.add(connection);
+                connections.add(connection);
+            }
+
+            List<Future<Long>> results = new ArrayList<>();
+            for (File csv_file_obj : csv_file_objs) {
+                results.add(pool.submit(() -> {
+                    Connection connection = connections.take();
+                    try {
+                        return copyFile(connection, csv_file_obj, manifest);
+                    } finally {
+                        connections.add(connection);
+                    }
+                }));
+            }
+
+            // Add up the rows of each table
+            for (int i = 0; i < csv_file_objs.size(); i++) {
+                long rows = results.get(i).get();
+                String fileName = csv_file_objs.get(i).getName();
+                if (fileName.startsWith("table_1hz")) {
+                    count_file_1hz++;
+                    count_table_1hz += rows;
+                    System.out.println(count_file_1hz + "\n" + fileName);
+                } else {
+                    count_file_40hz++;
+                    count_table_40hz += rows;
+                    System.out.println(count_file_40hz + "\n" + fileName);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Connection connection : opened) {
+                try {
+                    connection.close();
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * COPY one table_40hz or table_1hz file into its table.
+     *
+     * @param manifest extraction manifest, null if there is none
+     * @return number of rows loaded
+     * @throws Exception
+     */
+    private static long copyFile(Connection connection, File csv_file_obj, GranuleManifest manifest) throws Exception {
+        String fileName = csv_file_obj.getName();
+        boolean is1hz = fileName.startsWith("table_1hz");
+        String table = is1hz ? TABLE_1HZ : TABLE_40HZ;
+
+        // file ids of the granules of the day
+        Matcher matcher = DAY_FILE.matcher(fileName);
+        int[] fileIds = manifest != null && matcher.matches() ? manifest.fileIds(matcher.group(2)) : null;
+
+        if (fileName.endsWith(".bin") || fileName.endsWith(".bin.gz")) {
+            return loadFile(connection, table, is1hz ? SQL_1HZ_BINARY : SQL_40HZ_BINARY, csv_file_obj, fileIds);
+        }
+        return loadFile(connection, table, is1hz ? SQL_1HZ : SQL_40HZ, csv_file_obj, fileIds);
+    }
+
+    /**
+     * Add the granules of table_fileId.csv that HDF5_FILE does not have yet. The
+     * file lists every granule extracted so far, so it is COPYed into a temporary
+     * table and only the new fileids are inserted, in one transaction.
+     *
+     * @return number of granules added
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static long loadFileIds(Connection connection, File file) throws SQLException, IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return loadFileIds(connection, in);
+        }
+    }
+
+    /**
+     * Add the granules of the table_fileId rows read from a stream that HDF5_FILE
+     * does not have yet.
+     *
+     * @return number of granules added
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static long loadFileIds(Connection connection, InputStream in) throws SQLException, IOException {
+        CopyManager cm = new CopyManager((BaseConnection) connection);
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("CREATE TEMP TABLE HDF5_FILE_NEW (LIKE HDF5_FILE INCLUDING DEFAULTS) ON COMMIT DROP");
+            cm.copyIn(SQL_FILEID_NEW, in, LOAD_BUFFER_SIZE);
+            long rows = stmt.executeUpdate("INSERT INTO HDF5_FILE SELECT * FROM HDF5_FILE_NEW "
+                    + "WHERE NOT EXISTS (SELECT 1 FROM HDF5_FILE WHERE HDF5_FILE.FILEID = HDF5_FILE_NEW.FILEID)");
+            connection.commit();
+            return rows;
+        } catch (SQLException | IOException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            stmt.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * COPY a file into a table unless the load ledger has it already. The COPY
+     * and the ledger entry are committed in one transaction. A file that changed
+     * since it was loaded first deletes the rows of the granules of its day, in
+     * the same transaction.
+     *
+     * @param fileIds file ids of the granules of the day of the file, or null
+     * @return number of rows loaded, 0 for a file loaded by an earlier run
+     * @throws SQLException
+     * @throws IOException
+     */
+    private static long loadFile(Connection connection, String table, String sql, File file, int[] fileIds) throws SQLException, IOException {
+        CopyManager cm = new CopyManager((BaseConnection) connection);
+        if (!LEDGER) {
+            return copyIn(cm, sql, file, null);
+        }
+
+        LoadLedger.State state = LoadLedger.state(connection, table, file);
+        if (state == LoadLedger.State.LOADED) {
+            System.out.println("Already loaded: " + file.getName());
+            return 0;
+        }
+        if (state == LoadLedger.State.CHANGED && (fileIds == null || fileIds.length == 0)) {
+            throw new SQLException(file.getName() + " changed since it was loaded into " + table
+                    + " and the extraction manifest has no granules for it, reload the table with load.bulk=true");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            if (state == LoadLedger.State.CHANGED) {
+                // HDF5.java rewrote the file with the granules of the whole day
+                long deleted = deleteGranules(connection, table, fileIds);
+                System.out.println("Reloading " + file.getName() + ", " + deleted + " rows of its day deleted");
+            }
+            CRC32 checksum = new CRC32();
+            long rows = copyIn(cm, sql, file, checksum);
+            LoadLedger.record(connection, table, file, checksum.getValue(), rows);
+            connection.commit();
+            return rows;
+        } catch (SQLException | IOException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Delete the rows of some granules from a table.
+     *
+     * @return number of rows deleted
+     * @throws SQLException
+     */
+    private static long deleteGranules(Connection connection, String table, int[] fileIds) throws SQLException {
+        Integer[] ids = new Integer[fileIds.length];
+        for (int i = 0; i < fileIds.length; i++) {
+            ids[i] = fileIds[i];
+        }
+        PreparedStatement stmt = connection.prepareStatement("DELETE FROM " + table + " WHERE FILEID = ANY (?)");
+        try {
+            stmt.setArray(1, connection.createArrayOf("integer", ids));
+            return stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * COPY a file into the database as raw bytes. The file is read through a
+     * FileChannel in LOAD_BUFFER_SIZE blocks and each block is handed to the
+     * driver as it is, CSV text is never decoded into chars and encoded again.
+     * A .gz file is decompressed on its own thread while the blocks before are sent.
+     *
+     * @param checksum updated with the bytes of the file, or null
+     * @return number of rows loaded
+     * @throws SQLException
+     * @throws IOException
+     */
+    public static long copyIn(CopyManager cm, String sql, File file, Checksum checksum) throws SQLException, IOException {
+        if (file.getName().endsWith(".gz")) {
+            return copyInGzip(cm, sql, file, checksum);
+        }
+
+        byte[] bytes = new byte[LOAD_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        CopyIn copy = cm.copyIn(sql);
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                while (channel.read(buffer) >= 0) {
+                    if (buffer.position() > 0) {
+                        if (checksum != null) {
+                            checksum.update(bytes, 0, buffer.position());
+                        }
+                        copy.writeToCopy(bytes, 0, buffer.position());
+                        buffer.clear();
+                    }
+                }
+            } finally {
+                channel.close();
+            }
+            return copy.endCopy();
+        } finally {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+    }
+
+    /**
+     * COPY a gzip file. A thread decompresses it into LOAD_BUFFER_SIZE blocks,
+     * up to GZIP_BLOCKS ahead of the blocks being sent to the database.
+     */
+    private static long copyInGzip(CopyManager cm, String sql, File file, Checksum checksum) throws SQLException, IOException {
+        BlockingQueue<byte[]> free_blocks = new ArrayBlockingQueue<>(GZIP_BLOCKS);
+        for (int i = 0; i < GZIP_BLOCKS; i++) {
+            free_blocks.add(new byte[LOAD_BUFFER_SIZE]);
+        }
+        // Decompressed blocks, limited to their data, and an empty one after the last
+        BlockingQueue<ByteBuffer> full_blocks = new ArrayBlockingQueue<>(GZIP_BLOCKS + 1);
+        Throwable[] error = new Throwable[1];
+
+        Thread reader = new Thread(() -> {
+            try {
+                InputStream file_in = new FileInputStream(file);
+                if (checksum != null) {
+                    file_in = new CheckedInputStream(file_in, checksum);
+                }
+                InputStream in = new GZIPInputStream(file_in, 64 << 10);
+                try {
+                    while (true) {
+                        byte[] block = free_blocks.take();
+                        int length = 0;
+                        int n;
+                        while (length < block.length && (n = in.read(block, length, block.length - length)) >= 0) {
+                            length += n;
+                        }
+                        if (length == 0) {
+                            break;
+                        }
+                        full_blocks.put(ByteBuffer.wrap(block, 0, length));
+                    }
+
+                    // The checksum covers the whole file, including any bytes after the gzip data
+                    byte[] rest = new byte[8192];
+                    while (file_in.read(rest) >= 0) {
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Throwable ex) {
+                error[0] = ex;
+            }
+            full_blocks.add(ByteBuffer.allocate(0));
+        }, "gunzip " + file.getName());
+        reader.setDaemon(true);
+        reader.start();
+
+        CopyIn copy = cm.copyIn(sql);
+        try {
+            ByteBuffer block;
+            while ((block = full_blocks.take()).hasRemaining()) {
+                copy.writeToCopy(block.array(), 0, block.limit());
+                free_blocks.put(block.array());
+            }
+            reader.join();
+            if (error[0] != null) {
+                throw new IOException("Cannot decompress " + file.getName(), error[0]);
+            }
+            return copy.endCopy();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + file.getName(), ex);
+        } finally {
+            reader.interrupt();
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+    }
+
+    /**
+     * Create the empty unlogged staging tables of DATA_40HZ and DATA_1HZ.
+     *
+     * @throws SQLException
+     */
+    public static void prepareBulkLoad() throws SQLException {
+        for (String table : new String[]{"DATA_40HZ", "DATA_1HZ"}) {
+            StagingTable staging = new StagingTable(table);
+            staging.create(postgresConn);
+            if (LEDGER) {
+                // Nothing is loaded in the new staging table
+                Statement stmt = postgresConn.createStatement();
+                try {
+                    stmt.execute(LoadLedger.clearSql(staging.staging));
+                } finally {
+                    stmt.close();
+                }
+            }
+            System.out.println("Created staging table of " + table);
+        }
+    }
+
+    /**
+     * Add the constraints and indexes of DATA_40HZ and DATA_1HZ to the loaded
+     * staging tables, each step running on LOAD_THREADS connections at the same
+     * time, then switch them to LOGGED, swap them in and analyze them.
+     *
+     * @throws Exception
+     */
+    public static void finishBulkLoad() throws Exception {
+        List<StagingTable> tables = new ArrayList<>();
+        tables.add(new StagingTable("DATA_40HZ"));
+        tables.add(new StagingTable("DATA_1HZ"));
+
+        List<String> constraints = new ArrayList<>();
+        List<String> indexes = new ArrayList<>();
+        List<String> logged = new ArrayList<>();
+        List<String> analyze = new ArrayList<>();
+        for (StagingTable table : tables) {
+            String sql = table.constraintsSql(postgresConn);
+            if (sql != null) {
+                constraints.add(sql);
+            }
+            indexes.addAll(table.indexesSql(postgresConn));
+            logged.add(table.setLoggedSql());
+            analyze.add(table.analyzeSql());
+        }
+
+        // Constraints first, their ALTER TABLE would hold back the index builds
+        executeParallel(constraints);
+        executeParallel(indexes);
+        executeParallel(logged);
+
+        for (StagingTable table : tables) {
+            table.swap(postgresConn, LEDGER ? LoadLedger.swapSql(table.table, table.staging) : new String[0]);
+            System.out.println("Swapped in " + table.table);
+        }
+        executeParallel(analyze);
+    }
+
+    /**
+     * Execute independent statements on up to LOAD_THREADS connections at the same time.
+     *
+     * @throws Exception
+     */
+    private static void executeParallel(List<String> sqls) throws Exception {
+        int threads = Math.min(LOAD_THREADS, sqls.size());
+        if (threads == 0) {
+            return;
+        }
+
+        BlockingQueue<Connection> connections = new ArrayBlockingQueue<>(threads);
+        List<Connection> opened = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                Connection connection = openConnection();
+                opened.add(connection);
+                connections.add(connection);
+            }
+
+            List<Future<?>> results = new ArrayList<>();
+            for (String sql : sqls) {
+                results.add(pool.submit(() -> {
+                    Connection connection = connections.take();
+                    try {
+                        System.out.println(sql);
+                        Statement stmt = connection.createStatement();
+                        try {
+                            stmt.execute(sql);
+                        } finally {
+                            stmt.close();
+                        }
+                        return null;
+                    } finally {
+                        connections.add(connection);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            pool.shutdownNow();
+            for (Connection connection : opened) {
+                try {
+                    connection.close();
+                } catch (SQLException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create and load the partition table of each cell file of DATA_DIR/cells,
+     * and build its index once the rows are in.
+     *
+     * @throws Exception
+     */
+    public static void loadCellFiles() throws Exception {
+        CopyManager cm = new CopyManager((BaseConnection) postgresConn);
+
+        File cell_dir_obj = new File(DATA_DIR, "cells");
+        File[] cell_file_objs = cell_dir_obj.listFiles();
+        if (cell_file_objs == null) {
+            System.out.println("Cell dir does not exist: " + cell_dir_obj.getPath());
+            return;
+        }
+        Arrays.sort(cell_file_objs);
+
+        for (File cell_file_obj : cell_file_objs) {
+            Matcher matcher = CELL_FILE.matcher(cell_file_obj.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            int lat = Integer.parseInt(matcher.group(1));
+            int lon = Integer.parseInt(matcher.group(2));
+            boolean binary = matcher.group(3).equals("bin");
+
+            ICESATDBPartition.createTable(postgresConn, lat, lon);
+            String sql = String.format(SQL_CELL, lat, lon, binary ? "(FORMAT binary)" : "DELIMITER AS ',' CSV");
+            count_table_cells += copyIn(cm, sql, cell_file_obj, null);
+            ICESATDBPartition.createIndex(postgresConn, lat, lon);
+
+            count_file_cells++;
+            System.out.println(count_file_cells + "\n" + cell_file_obj.getName());
+        }
+    }
+
+    /**
+     * Extract the HDF5 files of HDF5_DIR with jnative.HDF5 and stream the rows
+     * straight into one COPY session per table, each on its own connection, so
+     * no CSV file is written or read. Extraction blocks whenever a table has
+     * STREAM_CHUNKS buffers waiting for the database. The table_fileId rows,
+     * written once every day is extracted, are kept in memory and added to
+     * HDF5_FILE at the end like table_fileId.csv.
+     *
+     * @throws Exception
+     */
+    public static void streamLoad() throws Exception {
+        File hdf5_dir_obj = new File(HDF5_DIR);
+
+        if (!hdf5_dir_obj.exists() || !hdf5_dir_obj.isDirectory()) {
+            System.out.println("HDF5 dir does not exist: " + HDF5_DIR);
+            return;
+        }
+
+        // A connection can run a single COPY at a time
+        Connection conn_40hz = openConnection();
+        Connection conn_1hz = openConnection();
+
+        CopyInChannel copy_40hz = null;
+        CopyInChannel copy_1hz = null;
+        try {
+            copy_40hz = new CopyInChannel(new CopyManager((BaseConnection) conn_40hz).copyIn(BINARY ? SQL_40HZ_BINARY : SQL_40HZ), STREAM_CHUNKS);
+            copy_1hz = new CopyInChannel(new CopyManager((BaseConnection) conn_1hz).copyIn(BINARY ? SQL_1HZ_BINARY : SQL_1HZ), STREAM_CHUNKS);
+
+            // All day directories share the same binary COPY stream, frame it once
+            if (BINARY) {
+                copy_40hz.write(ByteBuffer.wrap(BinaryRowWriter.HEADER));
+                copy_1hz.write(ByteBuffer.wrap(BinaryRowWriter.HEADER));
+            }
+
+            StreamOutput output = new StreamOutput(copy_40hz, copy_1hz);
+            HDF5.extract(hdf5_dir_obj, output, BINARY, HDF5_THREADS, null);
+
+            if (BINARY) {
+                copy_40hz.write(ByteBuffer.wrap(BinaryRowWriter.TRAILER));
+                copy_1hz.write(ByteBuffer.wrap(BinaryRowWriter.TRAILER));
+            }
+
+            count_table_40hz = copy_40hz.finish();
+            count_table_1hz = copy_1hz.finish();
+            count_table_fileId = loadFileIds(postgresConn, new ByteArrayInputStream(output.fileIds.toByteArray()));
+        } catch (Exception ex) {
+            for (CopyInChannel copy : new CopyInChannel[]{copy_40hz, copy_1hz}) {
+                if (copy != null) {
+                    copy.cancel();
+                }
+            }
+            throw ex;
+        } finally {
+            conn_40hz.close();
+            conn_1hz.close();
+        }
+    }
+
+    /**
+     * Extraction output sending every day directory to the same COPY sessions,
+     * and keeping the table_fileId rows.
+     */
+    static class StreamOutput implements ExtractionOutput {
+
+        // table_fileId rows, one per granule
+        final ByteArrayOutputStream fileIds = new ByteArrayOutputStream();
+
+        private final CopyInChannel copy_40hz;
+        private final CopyInChannel copy_1hz;
+
+        StreamOutput(CopyInChannel copy_40hz, CopyInChannel copy_1hz) {
+            this.copy_40hz = copy_40hz;
+            this.copy_1hz = copy_1hz;
+        }
+
+        @Override
+        public WritableByteChannel openFileId() {
+            return Channels.newChannel(fileIds);
+        }
+
+        @Override
+        public synchronized WritableByteChannel open40hz(String ymd_dir) {
+            count_file_40hz++;
+            System.out.println(count_file_40hz + "\n" + ymd_dir);
+            return copy_40hz.share();
+        }
+
+        @Override
+        public synchronized WritableByteChannel open1hz(String ymd_dir) {
+            count_file_1hz++;
+            return copy_1hz.share();
+        }
+    }
+
     public static boolean postgresConnect() {
         return postgresConnect(false);
     }
@@ -182,7 +857,7 @@ public class LoadIcesatDB {
     public static boolean postgresConnect(boolean readonly) {
 
         try {
-            postgresConn = DriverManager.getConnection(PDB_CONNECTION, PDB_USERNAME, PDB_PASSWORD);
+            postgresConn = openConnection();
             postgresConn.setReadOnly(readonly);
         } catch (SQLException ex) {
             ex.printStackTrace();
@@ -194,6 +869,16 @@ public class LoadIcesatDB {
         return true;
     }
 
+    /**
+     * Desc: Open a new connection to Postgres Database, in addition to postgresConn
+     *
+     * @return
+     * @throws SQLException
+     */
+    public static Connection openConnection() throws SQLException {
+        return DriverManager.getConnection(PDB_CONNECTION, PDB_USERNAME, PDB_PASSWORD);
+    }
+
     /**
      * Desc: Close connection from Postgres Database
      *
@@ -227,6 +912,16 @@ public class LoadIcesatDB {
         return rows;
     }
     
+    /**
+     * @param key property name
+     * @param default_value value used when the property is not set
+     * @return the property value
+     */
+    public static String getProperty(String key, String default_value) {
+        String value = Property.getProperty(key);
+        return value == null || value.isEmpty() ? default_value : value;
+    }
+
     /**
      * @param d2 the later date
      * @param d1 the earlier date
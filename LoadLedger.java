@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Ledger of the files LoadIcesatDB has loaded, kept in the table LOAD_LEDGER of the database. A file is
+COPYed and recorded in the same transaction, so after a failed run the files in the ledger are skipped and
+the others, whose partial COPY was rolled back, are loaded again.
+A file whose size and modification time match the ones recorded is skipped without being read, otherwise its
+checksum is compared. A file is recorded under its table and day without the format, ex. table_40hz_2003.02.20,
+so the file of a day extracted again in another format or compression is a changed file. HDF5.java rewrites the files of a day that gained or changed granules; such a file is
+not loaded a second time on top of its old rows, LoadIcesatDB deletes the rows of the granules of its day and
+loads it again, in one transaction.
+@project_url: www.openaltimetry.org
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import jnative.GranuleManifest;
+
+public class LoadLedger {
+
+    // State of a file in the ledger: never loaded, loaded and unchanged since, or changed since it was loaded
+    public enum State { NEW, LOADED, CHANGED }
+
+    static public final String SQL_CREATE = "CREATE TABLE IF NOT EXISTS LOAD_LEDGER (\n"
+            + "    table_name varchar(256),\n"
+            + "    file_name varchar(256),\n"
+            + "    file_size bigint,\n"
+            + "    file_mtime bigint,\n"
+            + "    checksum bigint,\n"
+            + "    row_count bigint,\n"
+            + "    committed_at timestamp without time zone DEFAULT now(),\n"
+            + "    PRIMARY KEY (table_name, file_name)\n"
+            + ")";
+
+    /**
+     * Create the ledger table if it does not exist yet.
+     */
+    public static void create(Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute(SQL_CREATE);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the name a file is recorded under, ex. table_40hz_2003.02.20 for table_40hz_2003.02.20.csv.gz
+     */
+    static String key(File file) {
+        return file.getName().replaceFirst("\\.(csv|bin)(\\.gz)?$", "");
+    }
+
+    /**
+     * @return whether the file was never loaded into the table, was loaded and is unchanged,
+     * or changed since it was loaded
+     */
+    public static State state(Connection connection, String table, File file) throws SQLException, IOException {
+        PreparedStatement stmt = connection.prepareStatement(
+                "SELECT file_size, checksum, file_mtime FROM LOAD_LEDGER WHERE table_name = ? AND file_name = ?");
+        try {
+            stmt.setString(1, table);
+            stmt.setString(2, key(file));
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                return State.NEW;
+            }
+            if (rs.getLong(1) == file.length()) {
+                // only read the file if it was touched since it was loaded
+                if (rs.getLong(3) == file.lastModified()) {
+                    return State.LOADED;
+                }
+                if (rs.getLong(2) == GranuleManifest.checksum(file)) {
+                    return State.LOADED;
+                }
+            }
+            return State.CHANGED;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Record a loaded file, in the transaction of its COPY. The entry of a file loaded
+     * again replaces the old one.
+     */
+    public static void record(Connection connection, String table, File file, long checksum, long rows) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(
+                "INSERT INTO LOAD_LEDGER (table_name, file_name, file_size, file_mtime, checksum, row_count) VALUES (?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT (table_name, file_name) DO UPDATE SET file_size = EXCLUDED.file_size, "
+                + "file_mtime = EXCLUDED.file_mtime, checksum = EXCLUDED.checksum, row_count = EXCLUDED.row_count, committed_at = now()");
+        try {
+            stmt.setString(1, table);
+            stmt.setString(2, key(file));
+            stmt.setLong(3, file.length());
+            stmt.setLong(4, file.lastModified());
+            stmt.setLong(5, checksum);
+            stmt.setLong(6, rows);
+            stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the statements moving the ledger entries of a staging table to the
+     * table it replaces, run in the transaction of the swap
+     */
+    public static String[] swapSql(String table, String staging) {
+        return new String[]{
+            "DELETE FROM LOAD_LEDGER WHERE lower(table_name) = lower('" + table + "')",
+            "UPDATE LOAD_LEDGER SET table_name = '" + table + "' WHERE lower(table_name) = lower('" + staging + "')"
+        };
+    }
+
+    /**
+     * @return the statement forgetting the files loaded into a table, when it is created again
+     */
+    public static String clearSql(String table) {
+        return "DELETE FROM LOAD_LEDGER WHERE lower(table_name) = lower('" + table + "')";
+    }
+}
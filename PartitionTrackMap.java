@@ -30,6 +30,9 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 @author: Kai Lin (klin@ucsd.edu)
 @date: July 24th 2017
 @desc: Program saves the track to table name mapping in the table “icesat_partitions.track_tables” for better query performance.
+Boxes without points have no partition table and are skipped.
+ICESATDBPartition adds the tracks of the rows it appends incrementally.
+The tracks of the tables are read on “partition.threads” connections at the same time and the map is replaced with one COPY, in one transaction. When the adaptive tiles were built, the tables listed in “icesat_partitions.tiles” are mapped instead.
 @project_url: www.openaltimetry.org
 
 */
@@ -37,59 +40,148 @@ THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package org.openaltimetry.icesat.db.util;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.Statement;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
 
 public class PartitionTrackMap {
 
-    public static void getTracks(String table, Connection connection, Map<Integer, Set<String>> track2tables) throws Exception {
+    /**
+     * @return the distinct tracks of the table, the rows without a track are left out
+     */
+    public static int[] getTracks(String table, Connection connection) throws Exception {
 
         Statement stmt = connection.createStatement();
-        String sql = "SELECT DISTINCT track_id FROM " + table;
+        String sql = "SELECT DISTINCT track_id FROM " + table + " WHERE track_id IS NOT NULL";
         ResultSet rs = stmt.executeQuery(sql);
+        int[] tracks = new int[64];
+        int count = 0;
         while (rs.next()) {
-            int trackId = rs.getInt(1);
-            Set<String> tables = track2tables.get(trackId);
-            if (tables == null) {
-                tables = new TreeSet<String>();
+            if (count == tracks.length) {
+                tracks = Arrays.copyOf(tracks, count * 2);
             }
-            tables.add(table);
-            track2tables.put(trackId, tables);
+            tracks[count++] = rs.getInt(1);
         }
+        rs.close();
+        stmt.close();
+        return Arrays.copyOf(tracks, count);
     }
 
-    public static void save(Integer track, String table, Connection connection) throws Exception {
-        
+    /**
+     * @return the names of the partition tables that exist, the tables of empty cells are not created
+     */
+    public static Set<String> getTables(Connection connection) throws Exception {
+
         Statement stmt = connection.createStatement();
-        String sql = "INSERT INTO icesat_partitions.track_tables(track_id, table_name) VALUES("+track+", '"+table+"')";
+        String sql = "SELECT tablename FROM pg_tables WHERE schemaname = 'icesat_partitions'";
+        ResultSet rs = stmt.executeQuery(sql);
+        Set<String> tables = new HashSet<String>();
+        while (rs.next()) {
+            tables.add(rs.getString(1));
+        }
+        rs.close();
+        stmt.close();
+        return tables;
+    }
+
+    /**
+     * Add the tracks of the data_40hz rows matching the where clause that the table does
+     * not list yet, ex. the rows just appended to the table.
+     */
+    public static void saveNew(String table, String where, Connection connection) throws Exception {
+
+        Statement stmt = connection.createStatement();
+        String sql = "INSERT INTO icesat_partitions.track_tables(track_id, table_name) \n"
+                + "SELECT DISTINCT track_id, '" + table + "' \n"
+                + "FROM data_40hz \n"
+                + where + " \n"
+                + "AND track_id IS NOT NULL \n"
+                + "AND NOT EXISTS (SELECT 1 FROM icesat_partitions.track_tables \n"
+                + "    WHERE track_tables.track_id = data_40hz.track_id AND track_tables.table_name = '" + table + "')";
         stmt.execute(sql);
-        
+        stmt.close();
+    }
+
+    /**
+     * Replace the rows of icesat_partitions.track_tables by the tracks of each table, with
+     * one COPY in one transaction, so readers see either the previous map or the new one.
+     */
+    public static void saveAll(List<String> tableNames, int[][] tracks, Connection connection) throws Exception {
+
+        connection.setAutoCommit(false);
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute("DELETE FROM icesat_partitions.track_tables");
+            stmt.close();
+
+            CopyIn copy = new CopyManager((BaseConnection) connection)
+                    .copyIn("COPY icesat_partitions.track_tables(track_id, table_name) FROM STDIN WITH CSV");
+            try {
+                StringBuilder rows = new StringBuilder();
+                for (int i = 0; i < tableNames.size(); i++) {
+                    String table = "\"" + tableNames.get(i).replace("\"", "\"\"") + "\"";
+                    for (int track : tracks[i]) {
+                        rows.append(track).append(',').append(table).append('\n');
+                    }
+                    if (rows.length() >= 1 << 20 || i == tableNames.size() - 1) {
+                        byte[] bytes = rows.toString().getBytes(StandardCharsets.UTF_8);
+                        copy.writeToCopy(bytes, 0, bytes.length);
+                        rows.setLength(0);
+                    }
+                }
+                System.out.println("track tables: " + copy.endCopy());
+            } finally {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+            }
+            connection.commit();
+        } catch (Exception ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+        }
     }
-    
+
     public static void main(String[] args) throws Exception {
         Class.forName("org.postgresql.Driver");
         Connection connection = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
-        Map<Integer, Set<String>> track2tables = new TreeMap<Integer, Set<String>>();
         try {
-            for (int lat = -90; lat < 90; lat = lat + 1) {
-                for (int lon = 0; lon < 360; lon = lon + 1) {
-                    String tableName = "icesat_partitions.\"t_" + lat + "_" + lon+"\"";
-                    getTracks(tableName, connection, track2tables);
+            List<String> tableNames = ICESATDBPartition.tileTables(connection);
+            if (tableNames.isEmpty()) {
+                Set<String> tables = getTables(connection);
+                for (int lat = -90; lat < 90; lat = lat + 1) {
+                    for (int lon = 0; lon < 360; lon = lon + 1) {
+                        if (tables.contains("t_" + lat + "_" + lon)) {
+                            tableNames.add("icesat_partitions.\"t_" + lat + "_" + lon+"\"");
+                        }
+                    }
                 }
             }
-            
-            for (Integer track : track2tables.keySet()) {
-                for (String table : track2tables.get(track)) {
-                    save(track, table, connection);
-                }
+
+            // the tracks of each table, read on partition.threads connections at the same time
+            int[][] tracks = new int[tableNames.size()][];
+            List<ICESATDBPartition.PartitionTask> tasks = new ArrayList<ICESATDBPartition.PartitionTask>();
+            for (int i = 0; i < tableNames.size(); i++) {
+                int index = i;
+                tasks.add(table_connection -> {
+                    tracks[index] = getTracks(tableNames.get(index), table_connection);
+                });
             }
-            
+            ICESATDBPartition.runParallel(connection, tasks);
+
+            saveAll(tableNames, tracks, connection);
         } finally {
             connection.close();
         }
@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Base of the row writers of the ICESat extraction. Rows are encoded straight into a large direct
+ByteBuffer, taken from a pool shared by all writers on the first row, and the buffer is flushed through a channel once
+it cannot hold another row, so a flush always carries whole rows.
+Subclasses define the encoding of the 40hz and 1hz rows: CsvRowWriter for CSV text, BinaryRowWriter for
+the PostgreSQL binary COPY format. An instance is not thread safe, use one per thread.
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public abstract class RowWriter implements Writer40hz {
+
+    // Track id of a 40hz row without a matching 1hz record
+    public static final int NO_TRACK = Integer.MIN_VALUE;
+
+    // Size of the output buffer of each writer
+    public static final int BUFFER_SIZE = Integer.getInteger("hdf5.buffer_size", 4 << 20);
+
+    // Upper bound of the encoded size of one 40hz or 1hz row
+    protected static final int MAX_ROW = 256;
+
+    // Direct buffers are expensive to allocate, keep the ones of closed writers for reuse
+    private static final ConcurrentLinkedQueue<ByteBuffer> FREE_BUFFERS = new ConcurrentLinkedQueue<>();
+
+    protected final WritableByteChannel channel;
+    protected ByteBuffer buffer;
+    private boolean closed = false;
+
+    protected RowWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return a CSV or binary COPY row writer over channel
+     */
+    public static RowWriter create(WritableByteChannel channel, boolean binary) {
+        return binary ? new BinaryRowWriter(channel) : new CsvRowWriter(channel);
+    }
+
+    /**
+     * Write one row of table_40hz:
+     * FILEID, EPOCH_2000_40, DATETIME_40, LAT, LON, ELEV, TIME_IDX, TRACK_ID
+     * with trackId NO_TRACK, written as NULL, when no 1hz record has the same TIME_IDX
+     */
+    @Override
+    public abstract void write40hz(int filedb_Id, double time, double lat, double lon, double elev, int time_idx, int trackId) throws IOException;
+
+    /**
+     * Write one row of table_1hz:
+     * FILEID, EPOCH_2000_1, DATETIME_1, TRACK_ID, TIME_IDX
+     */
+    public abstract void write1hz(int filedb_Id, double time, int trackId, int time_idx) throws IOException;
+
+    /**
+     * Write one row of a partition table icesat_partitions."t_<lat>_<lon>":
+     * ID, DATETIME_40, LAT, LON, ELEV, TRACK_ID, FILEID
+     * with trackId NO_TRACK written as NULL
+     */
+    public abstract void writeCell(long id, double time, double lat, double lon, double elev, int trackId, int filedb_Id) throws IOException;
+
+    /**
+     * Make sure the buffer can hold one more 40hz or 1hz row.
+     */
+    protected void reserveRow() throws IOException {
+        if (buffer == null) {
+            ByteBuffer free = FREE_BUFFERS.poll();
+            buffer = free != null ? free : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        } else if (buffer.remaining() < MAX_ROW) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the buffered rows to the channel.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Flush the buffered rows and close the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            if (buffer != null) {
+                buffer.clear();
+                FREE_BUFFERS.add(buffer);
+                buffer = null;
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Unlogged staging copy of a table for bulk loads (see LoadIcesatDB load.bulk). The rows are COPYed into
+<table>_STAGING, created without indexes or constraints, then the indexes and constraints of the table are
+built on it under temporary names, it is switched to LOGGED and swapped in place of the table in a single
+transaction, so readers keep seeing the old rows until the swap.
+@project_url: www.openaltimetry.org
+*/
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StagingTable {
+
+    // Suffix of the temporary names of the staging table, its indexes and constraints
+    static public final String SUFFIX = "_staging";
+
+    // Table replaced by the bulk load, ex. DATA_40HZ
+    public final String table;
+
+    // Staging table the rows are loaded into, ex. DATA_40HZ_staging
+    public final String staging;
+
+    public StagingTable(String table) {
+        this.table = table;
+        this.staging = table + SUFFIX;
+    }
+
+    /**
+     * Create the empty staging table with the columns, NOT NULL and defaults of the table.
+     */
+    public void create(Connection connection) throws SQLException {
+        // The swap would replace the partitions by one plain table
+        if (!query(connection, "SELECT 1 FROM pg_class WHERE oid = ?::regclass AND relkind = 'p'").isEmpty()) {
+            throw new SQLException(table + " is partitioned, load it without load.bulk");
+        }
+
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.execute("DROP TABLE IF EXISTS " + staging);
+            stmt.execute("CREATE UNLOGGED TABLE " + staging + " (LIKE " + table + " INCLUDING DEFAULTS)");
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the statement adding the primary key, unique, check, exclusion and foreign key
+     * constraints of the table to the staging table, or null if it has none
+     */
+    public String constraintsSql(Connection connection) throws SQLException {
+        List<String> clauses = new ArrayList<>();
+        for (String[] constraint : query(connection,
+                "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint "
+                + "WHERE conrelid = ?::regclass AND contype IN ('p', 'u', 'c', 'x', 'f') ORDER BY conname")) {
+            clauses.add("ADD CONSTRAINT " + quote(constraint[0] + SUFFIX) + " " + constraint[1]);
+        }
+        return clauses.isEmpty() ? null : "ALTER TABLE " + staging + " " + String.join(", ", clauses);
+    }
+
+    /**
+     * @return the statements creating the indexes of the table on the staging table,
+     * except the ones created by its constraints
+     */
+    public List<String> indexesSql(Connection connection) throws SQLException {
+        List<String> sqls = new ArrayList<>();
+        for (String[] index : indexes(connection)) {
+            // CREATE [UNIQUE] INDEX name ON schema.table USING ...
+            String definition = index[1];
+            int on = definition.indexOf(" ON ");
+            int using = definition.indexOf(" USING ", on);
+            String create = definition.startsWith("CREATE UNIQUE INDEX") ? "CREATE UNIQUE INDEX " : "CREATE INDEX ";
+            sqls.add(create + quote(index[0] + SUFFIX) + " ON " + staging + definition.substring(using));
+        }
+        return sqls;
+    }
+
+    /**
+     * Write the staging table to the WAL so it survives a crash once swapped in.
+     */
+    public String setLoggedSql() {
+        return "ALTER TABLE " + staging + " SET LOGGED";
+    }
+
+    /**
+     * Replace the table by the staging table, giving it the names of the table's
+     * indexes and constraints and the ownership of its sequences, in one transaction.
+     *
+     * @param extra_sql statements to run in the same transaction, after the swap
+     */
+    public void swap(Connection connection, String... extra_sql) throws SQLException {
+        List<String[]> constraints = query(connection,
+                "SELECT conname FROM pg_constraint WHERE conrelid = ?::regclass AND contype IN ('p', 'u', 'c', 'x', 'f')");
+        List<String[]> indexes = indexes(connection);
+        List<String[]> sequences = query(connection,
+                "SELECT s.oid::regclass::text, a.attname FROM pg_depend d "
+                + "JOIN pg_class s ON s.oid = d.objid AND s.relkind = 'S' "
+                + "JOIN pg_attribute a ON a.attrelid = d.refobjid AND a.attnum = d.refobjsubid "
+                + "WHERE d.refobjid = ?::regclass AND d.deptype = 'a'");
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        Statement stmt = connection.createStatement();
+        try {
+            // Dropping the table would drop the sequences of its serial columns
+            for (String[] sequence : sequences) {
+                stmt.execute("ALTER SEQUENCE " + sequence[0] + " OWNED BY " + staging + "." + quote(sequence[1]));
+            }
+            stmt.execute("DROP TABLE " + table);
+            stmt.execute("ALTER TABLE " + staging + " RENAME TO " + unqualified(table));
+            for (String[] constraint : constraints) {
+                stmt.execute("ALTER TABLE " + table + " RENAME CONSTRAINT "
+                        + quote(constraint[0] + SUFFIX) + " TO " + quote(constraint[0]));
+            }
+            for (String[] index : indexes) {
+                stmt.execute("ALTER INDEX " + quote(index[0] + SUFFIX) + " RENAME TO " + quote(index[0]));
+            }
+            for (String sql : extra_sql) {
+                stmt.execute(sql);
+            }
+            connection.commit();
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            stmt.close();
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    public String analyzeSql() {
+        return "ANALYZE " + table;
+    }
+
+    /**
+     * @return name and definition of the indexes of the table not created by a constraint
+     */
+    private List<String[]> indexes(Connection connection) throws SQLException {
+        return query(connection,
+                "SELECT c.relname, pg_get_indexdef(i.indexrelid) FROM pg_index i "
+                + "JOIN pg_class c ON c.oid = i.indexrelid "
+                + "WHERE i.indrelid = ?::regclass "
+                + "AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid AND k.conrelid = i.indrelid) "
+                + "ORDER BY c.relname");
+    }
+
+    /**
+     * Run a catalog query on the table, with the table name as its only parameter.
+     */
+    private List<String[]> query(Connection connection, String sql) throws SQLException {
+        List<String[]> rows = new ArrayList<>();
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        try {
+            stmt.setString(1, table);
+            ResultSet rs = stmt.executeQuery();
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                String[] row = new String[columns];
+                for (int i = 0; i < columns; i++) {
+                    row[i] = rs.getString(i + 1);
+                }
+                rows.add(row);
+            }
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        return rows;
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String unqualified(String name) {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+}
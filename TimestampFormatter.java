@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Formatter of ICESat J2000 timestamps (seconds since January 1, 2000, 12:00:00 UTC) to the database
+timestamp format yyyy-MM-dd HH:mm:ss.SSS in UTC. It writes into a reusable byte buffer, caches the date part
+of the current day and computes the time of day with plain arithmetic, so formatting a row allocates nothing.
+The output is the same as formatting with SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS") in UTC.
+An instance is not thread safe, use one per thread (see forThread()).
+@project_url: www.openaltimetry.org
+
+*/
+
+package jnative;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+public class TimestampFormatter {
+
+    // Length of yyyy-MM-dd HH:mm:ss.SSS
+    public static final int LENGTH = 23;
+
+    // Number of miliseconds from January 1, 1970, 00:00:00 GMT to January 1, 2000, 12:00:00 GMT
+    public static final long J2000 = 946728000000L;
+
+    private static final long MS_PER_DAY = 86400000L;
+
+    // SimpleDateFormat switches to the Julian calendar before October 15, 1582
+    // and prints years after 9999 with more digits, keep it for those instants
+    private static final long FAST_START = -12219292800000L;
+    private static final long FAST_END = 253402300800000L;
+
+    private static final ThreadLocal<TimestampFormatter> THREAD_FORMATTER = new ThreadLocal<TimestampFormatter>() {
+        @Override
+        protected TimestampFormatter initialValue() {
+            return new TimestampFormatter();
+        }
+    };
+
+    // Formatted timestamp, the first 11 bytes hold the date of the cached day
+    private final byte[] chars = new byte[LENGTH];
+
+    // Cached day, as miliseconds since 1970 of its midnight and of the next one
+    private long day_start = 0;
+    private long day_end = 0;
+
+    // Formatter for instants outside of the fast range
+    private SimpleDateFormat legacy_formatter;
+
+    public TimestampFormatter() {
+        chars[4] = '-';
+        chars[7] = '-';
+        chars[10] = ' ';
+        chars[13] = ':';
+        chars[16] = ':';
+        chars[19] = '.';
+    }
+
+    /**
+     * @return the formatter of the calling thread
+     */
+    public static TimestampFormatter forThread() {
+        return THREAD_FORMATTER.get();
+    }
+
+    /**
+     * Convert J2000 seconds to miliseconds since 1970, the same way the
+     * extraction always did: truncate to miliseconds, then shift by J2000.
+     */
+    public static long toEpochMillis(double d) {
+        long time_ms = (long) (d * 1000);
+        return J2000 + time_ms;
+    }
+
+    /**
+     * Format a J2000 timestamp to a String.
+     */
+    public String format(double d) {
+        long ms = toEpochMillis(d);
+        if (ms < FAST_START || ms >= FAST_END) {
+            return legacyFormat(ms);
+        }
+        encode(ms);
+        return new String(chars, 0, LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Write a J2000 timestamp into a byte buffer as ASCII characters.
+     */
+    public void write(double d, ByteBuffer dst) {
+        long ms = toEpochMillis(d);
+        if (ms < FAST_START || ms >= FAST_END) {
+            dst.put(legacyFormat(ms).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        encode(ms);
+        dst.put(chars, 0, LENGTH);
+    }
+
+    /**
+     * Fill chars with the timestamp of ms, which must be within the fast range.
+     */
+    private void encode(long ms) {
+        if (ms < day_start || ms >= day_end) {
+            long days = Math.floorDiv(ms, MS_PER_DAY);
+            day_start = days * MS_PER_DAY;
+            day_end = day_start + MS_PER_DAY;
+            encodeDate(days);
+        }
+
+        int t = (int) (ms - day_start);
+        int hours = t / 3600000;
+        t -= hours * 3600000;
+        int minutes = t / 60000;
+        t -= minutes * 60000;
+        int seconds = t / 1000;
+        int millis = t - seconds * 1000;
+
+        put2(11, hours);
+        put2(14, minutes);
+        put2(17, seconds);
+        chars[20] = (byte) ('0' + millis / 100);
+        put2(21, millis % 100);
+    }
+
+    /**
+     * Fill the date part of chars from days since 1970-01-01, using the
+     * proleptic Gregorian calendar (civil from days).
+     */
+    private void encodeDate(long days) {
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+        put2(0, year / 100);
+        put2(2, year % 100);
+        put2(5, month);
+        put2(8, day);
+    }
+
+    private void put2(int pos, int value) {
+        chars[pos] = (byte) ('0' + value / 10);
+        chars[pos + 1] = (byte) ('0' + value % 10);
+    }
+
+    private String legacyFormat(long ms) {
+        if (legacy_formatter == null) {
+            legacy_formatter = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+            // Always use UTC timezone for Icesat data, DO NOT use local timezone
+            legacy_formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+        return legacy_formatter.format(new Date(ms));
+    }
+}
@@ -0,0 +1,443 @@
+/*
+Copyright (c) 2007 The Regents of the University of California
+
+Permission to use, copy, modify, and distribute this software and its documentation
+for educational, research and non-profit purposes, without fee, and without a written
+agreement is hereby granted, provided that the above copyright notice, this
+paragraph and the following three paragraphs appear in all copies.
+
+Permission to make commercial use of this software may be obtained
+by contacting:
+Technology Transfer Office
+9500 Gilman Drive, Mail Code 0910
+University of California
+La Jolla, CA 92093-0910
+(858) 534-5815
+invent@ucsd.edu
+
+THIS SOFTWARE IS PROVIDED BY THE REGENTS OF THE UNIVERSITY OF CALIFORNIA AND
+CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT
+NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED.
+IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+@desc: Compact track to cell index, read by memory mapping its file, so the partition tables of a track can be found without a database query.
+Cells are the one degree boxes of the partition tables, numbered as in jnative.CellBuckets. The cells of each track are stored like a roaring bitmap container: a sorted array of 16 bit cell numbers, or a bitmap of all the cells once the array would be larger. The tracks of each cell are stored as well, for the tracks of a cell or a lat/lon box.
+The index is built from “icesat_partitions.track_tables”, the adaptive tiles are mapped to every cell they overlap.
+@project_url: www.openaltimetry.org
+
+*/
+
+
+package org.openaltimetry.icesat.db.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import jnative.CellBuckets;
+
+public class TrackCellIndex {
+
+    // File of the index
+    private static final String INDEX_FILE = System.getProperty("track_index.file", "track_cells.idx");
+
+    // “TCI1”
+    private static final int MAGIC = 0x54434931;
+
+    // Size of a bitmap container, one bit per cell
+    private static final int BITMAP_BYTES = (CellBuckets.CELLS + 63) / 64 * 8;
+
+    /*
+     * Layout of the file, big endian:
+     * int MAGIC, int track_count, int pair_count,
+     * int[track_count] track ids, ascending,
+     * int[track_count + 1] offsets of the containers of the tracks in the container area,
+     * int[CELLS + 1] offsets of the tracks of each cell in the cell tracks,
+     * int[pair_count] cell tracks, indexes of the track ids,
+     * container area, a container of BITMAP_BYTES bytes is a bitmap, an array of
+     * unsigned shorts otherwise
+     */
+    private final ByteBuffer index;
+    private final int track_count;
+    private final int track_ids;
+    private final int track_offsets;
+    private final int cell_offsets;
+    private final int cell_tracks;
+    private final int containers;
+
+    private TrackCellIndex(ByteBuffer index) throws IOException {
+        this.index = index;
+        if (index.getInt(0) != MAGIC) {
+            throw new IOException("Not a track cell index");
+        }
+        track_count = index.getInt(4);
+        int pair_count = index.getInt(8);
+        track_ids = 12;
+        track_offsets = track_ids + 4 * track_count;
+        cell_offsets = track_offsets + 4 * (track_count + 1);
+        cell_tracks = cell_offsets + 4 * (CellBuckets.CELLS + 1);
+        containers = cell_tracks + 4 * pair_count;
+    }
+
+    /**
+     * Memory map an index file.
+     */
+    public static TrackCellIndex open(File index_file_obj) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(index_file_obj, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return new TrackCellIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            // the mapping stays valid once the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * @return the index of the track id, -1 if the track is not in the index
+     */
+    private int trackIndex(int track_id) {
+        int low = 0;
+        int high = track_count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middle_id = index.getInt(track_ids + 4 * middle);
+            if (middle_id < track_id) {
+                low = middle + 1;
+            } else if (middle_id > track_id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the cells of the track, ascending
+     */
+    public int[] cellsOf(int track_id) {
+        int track = trackIndex(track_id);
+        if (track < 0) {
+            return new int[0];
+        }
+        int start = containers + index.getInt(track_offsets + 4 * track);
+        int length = containers + index.getInt(track_offsets + 4 * (track + 1)) - start;
+
+        if (length != BITMAP_BYTES) {
+            int[] cells = new int[length / 2];
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] = index.getShort(start + 2 * i) & 0xFFFF;
+            }
+            return cells;
+        }
+
+        int[] cells = new int[CellBuckets.CELLS];
+        int count = 0;
+        for (int word = 0; word < BITMAP_BYTES / 8; word++) {
+            long bits = index.getLong(start + 8 * word);
+            while (bits != 0) {
+                cells[count++] = word * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return Arrays.copyOf(cells, count);
+    }
+
+    /**
+     * @return true if the track has points in the cell
+     */
+    public boolean contains(int track_id, int cell) {
+        int track = trackIndex(track_id);
+        if (track < 0) {
+            return false;
+        }
+        int start = containers + index.getInt(track_offsets + 4 * track);
+        int length = containers + index.getInt(track_offsets + 4 * (track + 1)) - start;
+
+        if (length == BITMAP_BYTES) {
+            return (index.getLong(start + 8 * (cell / 64)) & (1L << (cell % 64))) != 0;
+        }
+        int low = 0;
+        int high = length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middle_cell = index.getShort(start + 2 * middle) & 0xFFFF;
+            if (middle_cell < cell) {
+                low = middle + 1;
+            } else if (middle_cell > cell) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the tracks with points in the cell, ascending
+     */
+    public int[] tracksOf(int cell) {
+        int start = index.getInt(cell_offsets + 4 * cell);
+        int end = index.getInt(cell_offsets + 4 * (cell + 1));
+        int[] tracks = new int[end - start];
+        for (int i = 0; i < tracks.length; i++) {
+            tracks[i] = index.getInt(track_ids + 4 * index.getInt(cell_tracks + 4 * (start + i)));
+        }
+        return tracks;
+    }
+
+    /**
+     * @return the tracks with points in the cells overlapping the lat/lon box, ascending
+     */
+    public int[] tracksOf(double lat_min, double lat_max, double lon_min, double lon_max) {
+        boolean[] found = new boolean[track_count];
+        int count = 0;
+        for (int lat = cellLat(lat_min); lat <= cellLat(lat_max); lat++) {
+            for (int lon = cellLon(lon_min); lon <= cellLon(lon_max); lon++) {
+                int cell = CellBuckets.cellOf(lat, lon);
+                int end = index.getInt(cell_offsets + 4 * (cell + 1));
+                for (int i = index.getInt(cell_offsets + 4 * cell); i < end; i++) {
+                    int track = index.getInt(cell_tracks + 4 * i);
+                    if (!found[track]) {
+                        found[track] = true;
+                        count++;
+                    }
+                }
+            }
+        }
+
+        // track ids are stored ascending
+        int[] tracks = new int[count];
+        count = 0;
+        for (int track = 0; track < track_count; track++) {
+            if (found[track]) {
+                tracks[count++] = index.getInt(track_ids + 4 * track);
+            }
+        }
+        return tracks;
+    }
+
+    private static int cellLat(double lat) {
+        return Math.max(-90, Math.min(89, (int) Math.floor(lat)));
+    }
+
+    private static int cellLon(double lon) {
+        return Math.max(0, Math.min(359, (int) Math.floor(lon)));
+    }
+
+    /**
+     * @return the partition table of the cell, ex. icesat_partitions."t_32_245"
+     */
+    public static String tableOf(int cell) {
+        return "icesat_partitions.\"t_" + CellBuckets.latOf(cell) + "_" + CellBuckets.lonOf(cell) + "\"";
+    }
+
+    /**
+     * @return the cells of the partition table, none if the name is not a partition table
+     */
+    private static int[] cellsOfTable(String table_name, Map<String, int[]> tile_cells) {
+        String name = table_name.substring(table_name.indexOf('.') + 1).replace("\"", "");
+        int[] cells = tile_cells.get(name);
+        if (cells != null) {
+            return cells;
+        }
+        String[] tokens = name.split("_");
+        if (tokens.length != 3 || !tokens[0].equals("t")) {
+            return new int[0];
+        }
+        return new int[]{CellBuckets.cellOf(Integer.parseInt(tokens[1]), Integer.parseInt(tokens[2]))};
+    }
+
+    /**
+     * @return the cells overlapped by each table of icesat_partitions.tiles, none if the
+     * adaptive tiles were not built
+     */
+    private static Map<String, int[]> tileCells(Connection connection) throws Exception {
+
+        Map<String, int[]> tile_cells = new HashMap<String, int[]>();
+        if (ICESATDBPartition.tileTables(connection).isEmpty()) {
+            return tile_cells;
+        }
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT table_name, lat_min, lat_max, lon_min, lon_max FROM icesat_partitions.tiles");
+        while (rs.next()) {
+            int lat_start = cellLat(rs.getDouble(2));
+            int lat_end = Math.max(lat_start, (int) Math.ceil(rs.getDouble(3)) - 1);
+            int lon_start = cellLon(rs.getDouble(4));
+            int lon_end = Math.max(lon_start, (int) Math.ceil(rs.getDouble(5)) - 1);
+            int[] cells = new int[(lat_end - lat_start + 1) * (lon_end - lon_start + 1)];
+            int count = 0;
+            for (int lat = lat_start; lat <= lat_end; lat++) {
+                for (int lon = lon_start; lon <= lon_end; lon++) {
+                    cells[count++] = CellBuckets.cellOf(lat, lon);
+                }
+            }
+            tile_cells.put(rs.getString(1), cells);
+        }
+        rs.close();
+        stmt.close();
+        return tile_cells;
+    }
+
+    /**
+     * Write the index of icesat_partitions.track_tables to a file.
+     */
+    public static void build(Connection connection, File index_file_obj) throws Exception {
+
+        Map<String, int[]> tile_cells = tileCells(connection);
+
+        // the cells of each track, in the order of the track ids
+        int[] track_ids = new int[1024];
+        int[] track_offsets = new int[1025];
+        ByteBuffer containers = ByteBuffer.allocate(1 << 20);
+        int track_count = 0;
+
+        // (cell, track index) of every container entry
+        int[] pairs = new int[1 << 16];
+        int pair_count = 0;
+
+        int[] cells = new int[CellBuckets.CELLS];
+        int cell_count = 0;
+        boolean[] found = new boolean[CellBuckets.CELLS];
+
+        Statement stmt = connection.createStatement();
+        ResultSet rs = stmt.executeQuery("SELECT track_id, table_name FROM icesat_partitions.track_tables "
+                + "WHERE track_id IS NOT NULL ORDER BY track_id");
+        boolean more = rs.next();
+        while (more) {
+            int track_id = rs.getInt(1);
+            do {
+                for (int cell : cellsOfTable(rs.getString(2), tile_cells)) {
+                    if (!found[cell]) {
+                        found[cell] = true;
+                        cells[cell_count++] = cell;
+                    }
+                }
+                more = rs.next();
+            } while (more && rs.getInt(1) == track_id);
+            if (cell_count == 0) {
+                continue;
+            }
+            Arrays.sort(cells, 0, cell_count);
+
+            if (track_count == track_ids.length) {
+                track_ids = Arrays.copyOf(track_ids, track_count * 2);
+                track_offsets = Arrays.copyOf(track_offsets, track_count * 2 + 1);
+            }
+            if (containers.remaining() < BITMAP_BYTES) {
+                containers.flip();
+                containers = ByteBuffer.allocate(containers.capacity() * 2).put(containers);
+            }
+            if (pair_count + 2 * cell_count > pairs.length) {
+                pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, pair_count + 2 * cell_count));
+            }
+
+            // an array while it is smaller than the bitmap
+            if (2 * cell_count < BITMAP_BYTES) {
+                for (int i = 0; i < cell_count; i++) {
+                    containers.putShort((short) cells[i]);
+                }
+            } else {
+                long[] bitmap = new long[BITMAP_BYTES / 8];
+                for (int i = 0; i < cell_count; i++) {
+                    bitmap[cells[i] / 64] |= 1L << (cells[i] % 64);
+                }
+                for (long bits : bitmap) {
+                    containers.putLong(bits);
+                }
+            }
+            for (int i = 0; i < cell_count; i++) {
+                pairs[pair_count++] = cells[i];
+                pairs[pair_count++] = track_count;
+                found[cells[i]] = false;
+            }
+            cell_count = 0;
+
+            track_ids[track_count] = track_id;
+            track_count++;
+            track_offsets[track_count] = containers.position();
+        }
+        rs.close();
+        stmt.close();
+
+        // the tracks of each cell, counted then placed
+        int[] cell_offsets = new int[CellBuckets.CELLS + 1];
+        for (int i = 0; i < pair_count; i += 2) {
+            cell_offsets[pairs[i] + 1]++;
+        }
+        for (int cell = 0; cell < CellBuckets.CELLS; cell++) {
+            cell_offsets[cell + 1] += cell_offsets[cell];
+        }
+        int[] cell_tracks = new int[pair_count / 2];
+        int[] next = Arrays.copyOf(cell_offsets, CellBuckets.CELLS);
+        for (int i = 0; i < pair_count; i += 2) {
+            cell_tracks[next[pairs[i]]++] = pairs[i + 1];
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index_file_obj), 1 << 20));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(track_count);
+            out.writeInt(cell_tracks.length);
+            for (int i = 0; i < track_count; i++) {
+                out.writeInt(track_ids[i]);
+            }
+            for (int i = 0; i <= track_count; i++) {
+                out.writeInt(track_offsets[i]);
+            }
+            for (int offset : cell_offsets) {
+                out.writeInt(offset);
+            }
+            for (int track : cell_tracks) {
+                out.writeInt(track);
+            }
+            out.write(containers.array(), 0, containers.position());
+        } finally {
+            out.close();
+        }
+        System.out.println("tracks: " + track_count + ", cells: " + cell_tracks.length + ", bytes: " + index_file_obj.length());
+    }
+
+    /**
+     * Build the index file, or with arguments, print the cells of the tracks given.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            TrackCellIndex index = open(new File(INDEX_FILE));
+            for (String arg : args) {
+                for (int cell : index.cellsOf(Integer.parseInt(arg))) {
+                    System.out.println(arg + "," + tableOf(cell));
+                }
+            }
+            return;
+        }
+
+        Class.forName("org.postgresql.Driver");
+        Connection connection = DriverManager.getConnection("jdbc:postgresql://127.0.0.1:5432/icesat", "USERNAME", "PASSWORD");
+        try {
+            build(connection, new File(INDEX_FILE));
+        } finally {
+            connection.close();
+        }
+    }
+
+}